@@ -0,0 +1,192 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Moves channels nobody has used for a while into cold storage, in the background
+ * Can be found as MessageServer.archiver
+ * Every interval it packs each channel whose messages weren't read or added for longer than after into a ChannelArchive,
+ * then drops the messages from heap and the metadata store and hands their files to MessageServer.reclaimer
+ * Only the archive header stays in heap, so the channel is still listed with its message count
+ * The next request that needs the messages restores the channel from its archive
+ * A restored archive is deleted once a checkpoint has saved the messages again, so a crash before that can restore it once more
+ */
+
+public class Archiver implements Runnable {
+
+    private File dir;
+    private MessageStore store;
+    private long after; // Milliseconds a channel has to go unused
+    private long interval; // Milliseconds between passes
+    private long restoreBatchBytes; // Message files written back per commit batch when restoring
+    private long started = System.currentTimeMillis(); // Channels count as used at startup
+    private volatile boolean closed = false;
+    private ArrayList<ChannelArchive> retired; // Restored, deleted after the next checkpoint
+    private long archived = 0;
+    private long restored = 0;
+
+    public Archiver(File _dir, MessageStore _store, long _after, long _interval, long _restoreBatchBytes) {
+        dir = _dir;
+        store = _store;
+        after = _after;
+        interval = _interval;
+        restoreBatchBytes = _restoreBatchBytes;
+        retired = new ArrayList<ChannelArchive>();
+    }
+
+    /*
+     * Marks the channels that have an archive as archived. Call before Reclaimer.resume
+     * Archives of channels that no longer exist and files left over from an interrupted archiving are deleted
+     */
+    public void attach(ChannelList channelList) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        int attached = 0;
+        for (File f: files) {
+            if (!f.getName().endsWith(ChannelArchive.SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            ChannelArchive a;
+            try {
+                a = ChannelArchive.open(f);
+            } catch (IOException e) {
+                System.err.println("Could not read " + f + ": " + e.getMessage());
+                continue;
+            }
+            Channel c = channelList.getChannel(a.getChannelId());
+            if (c == null) {
+                a.delete();
+                continue;
+            }
+            c.setArchive(a);
+            attached++;
+        }
+        if (attached > 0) System.out.printf("%d channels are archived\n", attached);
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "channel-archive");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    // Called by Channel with its lock held, when its messages are needed again
+    public ArrayList<Message> unpack(Channel channel, ChannelArchive archive) throws IOException {
+        ArrayList<Message> messages = archive.unpack(channel.getGroup(), channel.getName(), MessageServer.blobs, restoreBatchBytes);
+        synchronized (this) {
+            retired.add(archive);
+            restored++;
+        }
+        return messages;
+    }
+
+    // Deletes the archive of a deleted channel after the next checkpoint, like a restored one
+    public synchronized void retire(ChannelArchive archive) {
+        retired.add(archive);
+    }
+
+    // Restored archives so far. Pass them to deleteRetired once a checkpoint started after this call has finished
+    public synchronized ArrayList<ChannelArchive> takeRetired() {
+        ArrayList<ChannelArchive> taken = retired;
+        retired = new ArrayList<ChannelArchive>();
+        return taken;
+    }
+
+    public void deleteRetired(List<ChannelArchive> archives) {
+        for (ChannelArchive a: archives) {
+            a.delete();
+        }
+    }
+
+    public synchronized long getArchived() {
+        return archived;
+    }
+
+    public synchronized long getRestored() {
+        return restored;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d channels archived, %d restored", archived, restored);
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Channel c: MessageServer.channelList.copyChannels()) {
+                if (closed) return;
+                if (c.isArchived() || c.getMessageCount() == 0) continue;
+                if (now - Math.max(c.getLastUsed(), started) < after) continue;
+                if (isRetired(c.getId())) continue; // Its restored archive is still needed until the next checkpoint
+                try {
+                    archive(c);
+                } catch (IOException | RuntimeException e) {
+                    System.err.printf("Error archiving %s/%s: %s\n", c.getGroup(), c.getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isRetired(long channelId) {
+        for (ChannelArchive a: retired) {
+            if (a.getChannelId() == channelId) return true;
+        }
+        return false;
+    }
+
+    /*
+     * The archive is written without holding any lock, from the messages as they were at one version of the channel
+     * If the channel changed meanwhile the archive is thrown away, and the channel is tried again next pass
+     */
+    private void archive(Channel c) throws IOException {
+        ArrayList<Message> messages;
+        long version;
+        synchronized (c) {
+            version = c.getVersion();
+            messages = c.getMessages();
+        }
+        ChannelArchive a = ChannelArchive.write(dir, c.getId(), messages, store);
+        ArrayList<String> paths = new ArrayList<String>();
+        for (Message m: messages) {
+            paths.add(m.getPath());
+        }
+        File list;
+        synchronized (MessageThread.class) { // Same lock as the message handlers
+            if (MessageServer.channelList.getChannel(c.getId()) != c || c.getVersion() != version) {
+                a.delete();
+                return;
+            }
+            try {
+                list = MessageServer.reclaimer.record(c.getId(), paths);
+            } catch (IOException e) {
+                a.delete();
+                throw e;
+            }
+            if (c.archive(a, version) == null) {
+                list.delete();
+                a.delete();
+                return;
+            }
+        }
+        MessageServer.responseCache.removeChannel(c.getId());
+        for (String path: paths) {
+            MessageServer.textCache.invalidate(path);
+        }
+        MessageServer.reclaimer.queue(list, paths.size());
+        synchronized (this) {
+            archived++;
+        }
+    }
+}
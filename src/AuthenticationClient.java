@@ -43,10 +43,12 @@ public class AuthenticationClient extends Client {
 		
 	 }
 
-	 public GroupKeyMap getGroupKeys() {
+	 // Pass the versions of the keys already held to only get new keys, or null to get every key
+	 public GroupKeyMap getGroupKeys(KeyVersionVector known) {
 		try {
 			Envelope env = null, resp = null;
 			env = new Envelope("GETGROUPKEYS");
+			env.addObject(known);
 			if (!sendEncrypted(env)) return null;
 			resp = receiveEncrypted();
 
@@ -273,6 +275,30 @@ public class AuthenticationClient extends Client {
 			}
 	}
 
+	// Tells the server no message uses keys of the group below index below anymore
+	public boolean retireGroupKeys(String groupname, int below) {
+		try {
+			Envelope message = null, response = null;
+			message = new Envelope("RETIREGROUPKEYS");
+			message.addObject(groupname); //Add group name string
+			message.addObject(below); //Add lowest key index still in use
+			if (!sendEncrypted(message)) return false;
+
+			response = receiveEncrypted();
+			if (response.getMessage().equals("OK")) {
+				System.out.printf("Retired %d old group keys\n", (int)response.getObjContents().get(0));
+				return true;
+			} else {
+				System.out.printf("Error retiring group keys: %s\n", response.getMessage());
+			}
+			return false;
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace(System.err);
+			return false;
+		}
+	}
+
 	public boolean getSessionKey(String username, IntermediaryInterface ask, CryptoSuite _suite) {
 		suite = _suite;
 		try {
@@ -2,12 +2,18 @@
  * If user list does not exists, it creates a new list and makes the user the server administrator
  * and the owner of the ADMIN group.
  * If group list does not exist, it creates a new list and adds the ADMIN group.
- * On exit, the server saves the user and group lists to file. 
+ * Changes to the lists go through the Journal in AuthJournal.bin first, which is replayed on top of the lists at startup.
+ * Every 5 minutes and on exit, the server checkpoints the user and group lists to file. 
  */
 
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 import java.security.PublicKey;
@@ -26,6 +32,7 @@ public class AuthenticationServer extends Server {
 	public static String privateKeyFile = "AuthPrivate.bin";
 	public static String publicKeyFile = "AuthPublic.bin";
 	public static String masterKeyFile = "AuthMaster.bin";
+	public static String journalFile = "AuthJournal.bin";
 
 	public PublicKey publicKey = null;
 	public PrivateKey privateKey = null;
@@ -35,6 +42,7 @@ public class AuthenticationServer extends Server {
 	public ServerSocket serverSock;
 	public UserList userList;
 	public GroupList groupList;
+	public Journal journal;
 
 	public AuthenticationServer() {
 		super(SERVER_PORT, "ALPHA");
@@ -57,6 +65,9 @@ public class AuthenticationServer extends Server {
 		Runtime runtime = Runtime.getRuntime();
 		runtime.addShutdownHook(new ShutDownListener(this));
 
+		// Finish a checkpoint that was cut off between writing the two lists
+		recoverCheckpoint();
+
 		// Open user file to get user list
 		try {
 			FileInputStream fis = new FileInputStream(userFile);
@@ -121,6 +132,10 @@ public class AuthenticationServer extends Server {
 			System.exit(-1);
 		}
 		console.close();
+
+		// Redo changes made since the lists were last saved, then save them
+		replayJournal();
+		checkpoint();
 		System.out.println("Welcome to the Authentication Server\nServer online");
 
 		// Autosave Daemon. Saves lists every 5 minutes
@@ -148,6 +163,199 @@ public class AuthenticationServer extends Server {
 
 	}
 
+	/*
+	 * Appends a change to the journal and then applies it to the lists
+	 * Returns false if the change could not be made durable, in which case it is not applied
+	 */
+	public boolean commit(Envelope record) {
+		synchronized (journal) {
+			try {
+				journal.append(record);
+			} catch (IOException e) {
+				System.err.println("Error writing to journal: " + e.getMessage());
+				e.printStackTrace(System.err);
+				return false;
+			}
+			apply(record);
+			return true;
+		}
+	}
+
+	// Applies one journal record to the user and group lists
+	@SuppressWarnings("unchecked")
+	private void apply(Envelope record) {
+		ArrayList<Object> args = record.getObjContents();
+		switch (record.getMessage()) {
+			case "CUSER": // username, master key, salt
+				userList.addUser((String)args.get(0), (SecretKey)args.get(1), (byte[])args.get(2));
+				break;
+			case "DUSER": // username, new key for each group the user is removed from
+				deleteUserHelper((String)args.get(0), (Hashtable<String, SecretKey>)args.get(1));
+				break;
+			case "CGROUP": { // owner, group name, first group key, epoch
+				String owner = (String)args.get(0);
+				String groupname = (String)args.get(1);
+				groupList.addGroup(owner, groupname, (SecretKey)args.get(2), (long)args.get(3));
+				userList.addGroup(owner, groupname);
+				userList.addOwnership(owner, groupname);
+				break;
+			}
+			case "DGROUP": // group name
+				deleteGroupHelper((String)args.get(0));
+				break;
+			case "AUSERTOGROUP": // username, group name
+				userList.addGroup((String)args.get(0), (String)args.get(1));
+				groupList.addMember((String)args.get(0), (String)args.get(1));
+				break;
+			case "RUSERFROMGROUP": { // requester, username, group name, new group key
+				String requester = (String)args.get(0);
+				String username = (String)args.get(1);
+				String groupname = (String)args.get(2);
+				userList.removeGroup(username, groupname);
+				groupList.removeMember(username, groupname);
+				groupList.addGroupKey(groupname, (SecretKey)args.get(3));
+				// Delete group if owner tries to remove themselves from group
+				if (requester.equals(username)) {
+					deleteGroupHelper(groupname);
+				}
+				break;
+			}
+			case "RETIREGROUPKEYS": // group name, lowest key index still in use
+				groupList.retireGroupKeys((String)args.get(0), (int)args.get(1));
+				break;
+			default:
+				System.out.printf("Unknown journal record: %s\n", record.getMessage());
+				break;
+		}
+	}
+
+	private void deleteGroupHelper(String groupname) {
+		List<String> deleteFromUsers = groupList.getMembers(groupname);
+		for(String username: deleteFromUsers)
+		{
+			userList.removeGroup(username, groupname);
+		}
+		
+		String owner = groupList.getOwner(groupname);
+		userList.removeOwnership(owner, groupname);
+		
+		groupList.deleteGroup(groupname);
+	}
+
+	private void deleteUserHelper(String username, Hashtable<String, SecretKey> newKeys) {
+		// Delete owned groups first to lessen work for groupw which were not owned
+		List<String> deleteOwnedGroups = new ArrayList<String>();
+		for (String groupname: userList.getUserOwnership(username)) {
+			deleteOwnedGroups.add(groupname);
+		}
+
+		for (String groupname: deleteOwnedGroups) {
+			deleteGroupHelper(groupname);
+		}
+
+		List<String> deleteFromGroups = userList.getUserGroups(username);
+		for (String groupname: deleteFromGroups) {
+			groupList.removeMember(username, groupname);
+
+			// Use the new secret key generated since user was removed from group
+			SecretKey gk = newKeys.get(groupname);
+			if (gk != null) {
+				groupList.addGroupKey(groupname, gk);
+			}
+		}
+		userList.deleteUser(username);
+	}
+
+	private void replayJournal() {
+		journal = new Journal(journalFile);
+		long seq = Math.min(userList.getJournalSeq(), groupList.getJournalSeq());
+		try {
+			ArrayList<Envelope> records = journal.replay(seq);
+			for (Envelope record: records) {
+				try {
+					apply(record);
+				} catch (Exception e) {
+					System.out.printf("Failed to replay journal record %s\n", record.getMessage());
+					e.printStackTrace(System.out);
+				}
+			}
+			if (records.size() > 0) {
+				System.out.printf("Replayed %d changes from the journal\n", records.size());
+			}
+			journal.open();
+		} catch (IOException e) {
+			System.out.println("Error reading from journal file");
+			System.exit(-1);
+		}
+	}
+
+	/*
+	 * Saves the user and group lists and drops the journal records they now include
+	 * The lists are serialized while holding the journal lock so they match its sequence number,
+	 * then written to temporary files and renamed over the old ones
+	 */
+	public synchronized void checkpoint() {
+		byte[] userBytes, groupBytes;
+		try {
+			synchronized (journal) {
+				long seq = journal.getLastSeq();
+				userList.setJournalSeq(seq);
+				groupList.setJournalSeq(seq);
+				userBytes = Cryptounit.serialize(userList);
+				groupBytes = Cryptounit.serialize(groupList);
+				journal.rotate();
+			}
+			// Both temporary files are complete before either rename, see recoverCheckpoint()
+			writeSynced(userFile + ".tmp", userBytes);
+			writeSynced(groupFile + ".tmp", groupBytes);
+			Files.move(Paths.get(userFile + ".tmp"), Paths.get(userFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(Paths.get(groupFile + ".tmp"), Paths.get(groupFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+			journal.dropRotated();
+		} catch (IOException e) {
+			System.err.println("Error writing checkpoint: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+	}
+
+	// If only the group list's temporary file is left, the user list was already renamed, so finish the job
+	// Otherwise any temporary files are from a checkpoint that never finished and the old lists still stand
+	private static void recoverCheckpoint() {
+		File userTmp = new File(userFile + ".tmp");
+		File groupTmp = new File(groupFile + ".tmp");
+		try {
+			if (groupTmp.exists() && !userTmp.exists()) {
+				System.out.println("Finishing interrupted checkpoint of GroupList");
+				Files.move(groupTmp.toPath(), Paths.get(groupFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			System.out.println("Error finishing interrupted checkpoint");
+			System.exit(-1);
+		}
+		userTmp.delete();
+		groupTmp.delete();
+	}
+
+	private static void writeSynced(String file, byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	// Makes the renames durable. Not every platform lets you open a directory, so failures are ignored
+	private static void syncDirectory() {
+		try {
+			FileChannel dir = FileChannel.open(new File(userFile).getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+			dir.force(true);
+			dir.close();
+		} catch (IOException e) {
+		}
+	}
+
 	private void loadKeys() {
 		try {
 			FileInputStream publicF = new FileInputStream(publicKeyFile);
@@ -200,7 +408,7 @@ public class AuthenticationServer extends Server {
 	}
 }
 
-// This thread saves user and group lists
+// This thread checkpoints user and group lists
 class ShutDownListener extends Thread {
 	public AuthenticationServer my_gs;
 
@@ -210,22 +418,15 @@ class ShutDownListener extends Thread {
 
 	public void run() {
 		System.out.println("Shutting down server");
-		ObjectOutputStream outStream;
 		try {
-			my_gs.serverSock.close();
-			outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-			outStream.writeObject(my_gs.userList);
-		} catch (Exception e) {
-			System.err.println("Error: " + e.getMessage());
-			e.printStackTrace(System.err);
-		}
-		try {
-			outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin"));
-			outStream.writeObject(my_gs.groupList);
+			if (my_gs.serverSock != null) my_gs.serverSock.close();
 		} catch (Exception e) {
 			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
 		}
+		if (my_gs.journal == null) return; // Never finished starting up
+		my_gs.checkpoint();
+		my_gs.journal.close();
 	}
 	// This is the end of the ShutDownListener class
 }
@@ -240,24 +441,9 @@ class AutoSave extends Thread {
 	public void run() {
 		do {
 			try {
-				Thread.sleep(300000); // Save group and user lists every 5 minutes
+				Thread.sleep(300000); // Checkpoint group and user lists every 5 minutes
 				System.out.println("Autosave group and user lists...");
-				ObjectOutputStream outStream;
-				try {
-					outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-					outStream.writeObject(my_gs.userList);
-				} catch (Exception e) {
-					System.err.println("Error: " + e.getMessage());
-					e.printStackTrace(System.err);
-				}
-				try {
-					outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin"));
-					outStream.writeObject(my_gs.groupList);
-				} catch (Exception e) {
-					System.err.println("Error with autosave");
-					System.err.println("Error: " + e.getMessage());
-					e.printStackTrace(System.err);
-				}
+				my_gs.checkpoint();
 			} catch (Exception e) {
 				System.out.println("Autosave Interrupted");
 			}
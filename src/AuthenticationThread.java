@@ -131,7 +131,10 @@ public class AuthenticationThread extends Thread
 					response = getToken(requester, env2);
 					break;
 				case "GETGROUPKEYS":
-					response = getGroupKeys(requester);
+					response = getGroupKeys(requester, env2);
+					break;
+				case "RETIREGROUPKEYS":
+					response = retireGroupKeys(requester, env2);
 					break;
 				default:
 					response = new Envelope("FAIL-BADOPERATION");
@@ -160,17 +163,15 @@ public class AuthenticationThread extends Thread
 		if (!my_gs.groupList.getOwner(groupname).equals(requester)) return new Envelope("FAIL-UNAUTHORIZED");
 		if (!my_gs.groupList.getMembers(groupname).contains(username)) return new Envelope("FAIL-USERNOTMEMBER");
 
-		my_gs.userList.removeGroup(username, groupname);
-		my_gs.groupList.removeMember(username, groupname);
-
 		// Generate a new secret key since user was removed from group
 		SecretKey gk = my_gs.suite.generateKey();
-		my_gs.groupList.addGroupKey(groupname, gk);
 
-		// Delete group if owner tries to remove themselves from group
-		if (requester.equals(username)) {
-			deleteGroupHelper(groupname);
-		}
+		Envelope record = new Envelope("RUSERFROMGROUP");
+		record.addObject(requester);
+		record.addObject(username);
+		record.addObject(groupname);
+		record.addObject(gk);
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 		return new Envelope("OK");
 	}
 
@@ -187,8 +188,10 @@ public class AuthenticationThread extends Thread
 		if (!my_gs.groupList.getOwner(groupname).equals(requester)) return new Envelope("FAIL-UNAUTHORIZED");
 		if (my_gs.groupList.getMembers(groupname).contains(username)) return new Envelope("FAIL-USERALREADYMEMBER");
 
-		my_gs.userList.addGroup(username, groupname);
-		my_gs.groupList.addMember(username, groupname);
+		Envelope record = new Envelope("AUSERTOGROUP");
+		record.addObject(username);
+		record.addObject(groupname);
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 		return new Envelope("OK");
 	}
 
@@ -217,9 +220,12 @@ public class AuthenticationThread extends Thread
 		if (my_gs.groupList.checkGroup(groupname)) return new Envelope("FAIL-GROUPEXISTS");
 
 		SecretKey gk = my_gs.suite.generateKey();
-		my_gs.groupList.addGroup(requester, groupname, gk);
-		my_gs.userList.addGroup(requester, groupname);
-		my_gs.userList.addOwnership(requester, groupname);
+		Envelope record = new Envelope("CGROUP");
+		record.addObject(requester);
+		record.addObject(groupname);
+		record.addObject(gk);
+		record.addObject(System.currentTimeMillis()); // Group epoch
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 		return new Envelope("OK");
 	}
 
@@ -238,12 +244,22 @@ public class AuthenticationThread extends Thread
 		return response;
 	}
 
-	private synchronized Envelope getGroupKeys(String requester) {
+	// If the client sends the key versions it already has, only the keys after those are returned
+	private synchronized Envelope getGroupKeys(String requester, Envelope env) {
 		try {
+			KeyVersionVector known = null;
+			if (env.getObjContents().size() > 0) known = (KeyVersionVector)env.getObjContents().get(0);
+
 			GroupKeyMap keyMap = new GroupKeyMap();
 			for (String groupname: my_gs.userList.getUserGroups(requester)) {
 				ArrayList<SecretKey> groupKeys = my_gs.groupList.getGroupKeys(groupname);
-				keyMap.addGroupKeys(groupname, groupKeys);
+				long epoch = my_gs.groupList.getGroupEpoch(groupname);
+				int base = 0;
+				if (known != null && known.hasGroup(groupname) && known.getEpoch(groupname) == epoch
+						&& known.getVersion(groupname) <= groupKeys.size()) {
+					base = known.getVersion(groupname);
+				}
+				keyMap.addGroupKeys(groupname, new ArrayList<SecretKey>(groupKeys.subList(base, groupKeys.size())), base, epoch);
 			}
 			Envelope response = new Envelope("OK");
 			response.addObject(keyMap);
@@ -254,6 +270,34 @@ public class AuthenticationThread extends Thread
 		return null;
 	}
 
+	// Group owner says no message uses keys below an index anymore, so they can be dropped
+	private synchronized Envelope retireGroupKeys(String requester, Envelope env) {
+		if (env.getObjContents().size() < 2) return new Envelope("FAIL-BADENVELOPE");
+		String groupname = (String)env.getObjContents().get(0);
+		Integer below = (Integer)env.getObjContents().get(1);
+		if (groupname == null) return new Envelope("FAIL-BADGROUPNAME");
+		if (below == null) return new Envelope("FAIL-BADKEYINDEX");
+
+		if (!my_gs.userList.checkUser(requester)) return new Envelope("FAIL-BADREQUESTER");
+		if (!my_gs.groupList.checkGroup(groupname)) return new Envelope("FAIL-NOGROUP");
+		if (!my_gs.groupList.getOwner(groupname).equals(requester)) return new Envelope("FAIL-UNAUTHORIZED");
+
+		// Count the keys that will be retired before the change is applied
+		int retired = 0;
+		ArrayList<SecretKey> keys = my_gs.groupList.getGroupKeys(groupname);
+		for (int i = 0; i < below && i < keys.size() - 1; i++) {
+			if (keys.get(i) != null) retired++;
+		}
+		Envelope record = new Envelope("RETIREGROUPKEYS");
+		record.addObject(groupname);
+		record.addObject(below.intValue());
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
+
+		Envelope response = new Envelope("OK");
+		response.addObject(retired);
+		return response;
+	}
+
 	private synchronized Token createToken(String requester, Envelope ht) {
 		// Check that the user exists
 		if (my_gs.userList.checkUser(requester)) {
@@ -275,7 +319,9 @@ public class AuthenticationThread extends Thread
 		if(!my_gs.userList.checkUser(requester)) return new Envelope("FAIL-BADREQUESTER");
 		if(!my_gs.userList.getUserOwnership(requester).contains(groupname)) return new Envelope("FAIL-UNAUTHORIZED");
 		
-		deleteGroupHelper(groupname);
+		Envelope record = new Envelope("DGROUP");
+		record.addObject(groupname);
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 
 		return new Envelope("OK");
 	}
@@ -294,7 +340,11 @@ public class AuthenticationThread extends Thread
 		ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
 		if(!temp.contains("ADMIN")) return new Envelope("FAIL-UNAUTHORIZED");
 		if(my_gs.userList.checkUser(username)) return new Envelope("FAIL-USEREXISTS");
-		my_gs.userList.addUser(username, mk, salt);
+		Envelope record = new Envelope("CUSER");
+		record.addObject(username);
+		record.addObject(mk);
+		record.addObject(salt);
+		if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 		return new Envelope("OK");
 	}
 	
@@ -310,44 +360,23 @@ public class AuthenticationThread extends Thread
 		if(!temp.contains("ADMIN")) return new Envelope("FAIL-UNAUTHORIZED");
 		if(!my_gs.userList.checkUser(username)) return new Envelope("FAIL-BADUSER");
 
-		deleteUserHelper(username);
-
-		return new Envelope("OK");
-	}
-
-	private void deleteGroupHelper(String groupname) {
-		List<String> deleteFromUsers = my_gs.groupList.getMembers(groupname);
-		for(String username: deleteFromUsers)
-		{
-			my_gs.userList.removeGroup(username, groupname);
-		}
-		
-		String owner = my_gs.groupList.getOwner(groupname);
-		my_gs.userList.removeOwnership(owner, groupname);
-		
-		my_gs.groupList.deleteGroup(groupname);
-	}
-
-	private void deleteUserHelper(String username) {
-		// Delete owned groups first to lessen work for groupw which were not owned
-		List<String> deleteOwnedGroups = new ArrayList<String>();
-		for (String groupname: my_gs.userList.getUserOwnership(username)) {
-			deleteOwnedGroups.add(groupname);
-		}
-
-		for (String groupname: deleteOwnedGroups) {
-			deleteGroupHelper(groupname);
+		// Generate a new secret key for each group the user is removed from
+		// Groups the user owns are deleted instead. Hold the journal so the groups can't change in between
+		synchronized (my_gs.journal) {
+			ArrayList<String> owned = my_gs.userList.getUserOwnership(username);
+			Hashtable<String, SecretKey> newKeys = new Hashtable<String, SecretKey>();
+			for (String groupname: my_gs.userList.getUserGroups(username)) {
+				if (!owned.contains(groupname)) {
+					newKeys.put(groupname, my_gs.suite.generateKey());
+				}
+			}
+			Envelope record = new Envelope("DUSER");
+			record.addObject(username);
+			record.addObject(newKeys);
+			if (!my_gs.commit(record)) return new Envelope("ERROR-JOURNAL");
 		}
 
-		List<String> deleteFromGroups = my_gs.userList.getUserGroups(username);
-		for (String groupname: deleteFromGroups) {
-			my_gs.groupList.removeMember(username, groupname);
-
-			// Generate a new secret key since user was removed from group
-			SecretKey gk = my_gs.suite.generateKey();
-			my_gs.groupList.addGroupKey(groupname, gk);
-		}
-		my_gs.userList.deleteUser(username);
+		return new Envelope("OK");
 	}
 
 	private Envelope decryptAuthToken(Envelope at) {
@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Content-addressed message files for the host server
+ * Can be found as MessageServer.blobs
+ * A message file is named after the SHA-256 of its ciphertext, so the same ciphertext sent twice, such as a retried send
+ * or an archive restored over files that are still there, is stored once and shared by every message that has it
+ * Reference counts are kept in heap only. They are built once at startup by countReferences, and from then on
+ * each Channel adds and drops references as its messages come and go
+ * Nothing deletes a blob directly. The collector deletes those without references every interval,
+ * but only once counting has finished and the blob hasn't been written or reused for the grace period,
+ * so a request that just got a blob can still add its message
+ * It also has to have lost its last reference before the last metadata store checkpoint started,
+ * so a crash can't bring back a message whose blob is gone
+ * Files from before blobs have random names, belong to one message each and are still deleted directly
+ */
+
+public class BlobStore implements Runnable {
+
+    static final String PREFIX = "blob";
+    private static final int NAME_LENGTH = PREFIX.length() + 64;
+
+    private MessageStore store;
+    private ChannelList channelList;
+    private long grace; // Milliseconds an unreferenced blob is kept after it was last written
+    private long interval; // Milliseconds between collections
+    private Hashtable<String, Integer> refs; // Messages using each blob, blobs without any are left out
+    private Hashtable<String, Long> touched; // When a blob not referenced yet was last written or reused
+    private HashSet<String> unreferenced; // Blobs to look at in the next collection
+    private boolean counted = false; // Every channel has counted its references
+    private long checkpointed = 0; // When the last finished checkpoint started
+    private volatile boolean closed = false;
+    private long written = 0;
+    private long deduplicated = 0;
+    private long collected = 0;
+
+    public BlobStore(MessageStore _store, ChannelList _channelList, long _grace, long _interval) {
+        store = _store;
+        channelList = _channelList;
+        grace = _grace;
+        interval = _interval;
+        refs = new Hashtable<String, Integer>();
+        touched = new Hashtable<String, Long>();
+        unreferenced = new HashSet<String>();
+    }
+
+    public static boolean isBlob(String name) {
+        return name.length() == NAME_LENGTH && name.startsWith(PREFIX);
+    }
+
+    // Runs counting and then the collector on a thread of their own. Call after Archiver.attach, so archived channels are known
+    public void start() {
+        Thread t = new Thread(this, "blob-collect");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    // Stores bytes as a blob and returns its file once it is durable
+    public File write(byte[] bytes) throws IOException {
+        return writeAll(List.of(bytes)).get(0);
+    }
+
+    // Stores several blobs like write, all in one commit batch, and returns them in the same order
+    public ArrayList<File> writeAll(List<byte[]> contents) throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        for (byte[] bytes: contents) {
+            MessageDigest md = digest();
+            md.update(bytes);
+            names.add(nameOf(md));
+        }
+        touch(names);
+        return store.writeNamed(names, contents);
+    }
+
+    /*
+     * Moves a finished file into the store as a blob and returns it once it is durable
+     * The file is read once to hash it. If the blob is already there the file is just deleted
+     */
+    public File adopt(File file) throws IOException {
+        MessageDigest md = digest();
+        byte[] buf = new byte[1 << 16];
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        String name = nameOf(md);
+        touch(List.of(name));
+        return store.adopt(file, name);
+    }
+
+    // Marks blobs as just written, before their files are looked at, so the collector leaves them alone until they are referenced
+    private synchronized void touch(List<String> names) {
+        long now = System.currentTimeMillis();
+        for (String name: names) {
+            if (store.fileFor(name).exists()) {
+                deduplicated++;
+            } else {
+                written++;
+            }
+            if (refs.containsKey(name)) continue;
+            touched.put(name, now);
+            unreferenced.add(name);
+        }
+    }
+
+    // Called by Channel when a message starts using a file. Files that aren't blobs are ignored
+    public synchronized void retain(String name) {
+        if (!isBlob(name)) return;
+        refs.merge(name, 1, Integer::sum);
+    }
+
+    // Called by Channel when a message stops using a file
+    public synchronized void release(String name) {
+        if (!isBlob(name)) return;
+        Integer n = refs.get(name);
+        if (n == null) return;
+        if (n > 1) {
+            refs.put(name, n - 1);
+            return;
+        }
+        refs.remove(name);
+        touched.put(name, System.currentTimeMillis());
+        unreferenced.add(name);
+    }
+
+    // Called by MessageScanner for a blob no message uses. It is collected like any other unreferenced blob
+    public synchronized void collectOrphan(String name) {
+        if (refs.containsKey(name) || unreferenced.contains(name)) return;
+        touched.put(name, System.currentTimeMillis());
+        unreferenced.add(name);
+    }
+
+    // Called by AutoSaveChannels once a checkpoint that started at the given time has finished
+    public synchronized void checkpointed(long started) {
+        checkpointed = Math.max(checkpointed, started);
+    }
+
+    public synchronized int getReferences(String name) {
+        return refs.getOrDefault(name, 0);
+    }
+
+    public synchronized String toString() {
+        return String.format("%d blobs in use, %d written, %d deduplicated, %d collected, %d unreferenced",
+            refs.size(), written, deduplicated, collected, unreferenced.size());
+    }
+
+    public void run() {
+        countReferences();
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            collect();
+        }
+    }
+
+    /*
+     * Has every channel count the blobs its messages use. Archived channels have none, their archive holds the files
+     * Channels count under their own lock, so a message added or removed meanwhile is counted exactly once
+     * Channels that aren't loaded are counted straight from the metadata store, so counting doesn't load them all
+     */
+    private void countReferences() {
+        long started = System.currentTimeMillis();
+        for (Channel c: channelList.copyChannels()) {
+            if (closed) return;
+            try {
+                c.countReferences();
+            } catch (RuntimeException e) { // Its blobs stay uncollected until the next restart
+                System.err.println("Blob count skipped channel " + c.getGroup() + "/" + c.getName() + ": " + e.getMessage());
+                return;
+            }
+        }
+        synchronized (this) {
+            counted = true;
+        }
+        System.out.printf("Blob count: %d blobs in use, counted in %d ms\n", getBlobCount(), System.currentTimeMillis() - started);
+    }
+
+    private synchronized int getBlobCount() {
+        return refs.size();
+    }
+
+    // Deletes the unreferenced blobs whose grace period is over. The lock keeps writers from reusing one while it is deleted
+    private synchronized void collect() {
+        if (!counted) return;
+        long now = System.currentTimeMillis();
+        Iterator<String> it = unreferenced.iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (refs.containsKey(name)) {
+                it.remove();
+                touched.remove(name);
+                continue;
+            }
+            if (now - touched.get(name) < grace || touched.get(name) >= checkpointed) continue;
+            it.remove();
+            touched.remove(name);
+            if (store.fileFor(name).delete()) collected++;
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String nameOf(MessageDigest md) {
+        StringBuilder name = new StringBuilder(PREFIX);
+        for (byte b: md.digest()) {
+            name.append(String.format("%02x", b));
+        }
+        return name.toString();
+    }
+}
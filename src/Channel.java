@@ -1,43 +1,348 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.TreeMap;
 
 /*
  * Object to respresent a channel
- * Keeps track of group, name, and owner
- * Keeps ArrayList of message objects in channel
- * Ideally message objects are stored in order that they are sent
- * No strict checks to maintain this policy, though
- * Stored in MessageServer.channelList, which is serialized to ChannelList.bin
+ * Keeps track of ID, group, name, and owner
+ * Keeps message objects in channel indexed by sequence number
+ * Every message added gets the next sequence number and a server timestamp, so messages are ordered as they were sent
+ * Stored in MessageServer.channelList, which is backed by MessageServer.metadataStore
+ * Messages are only loaded from the store the first time they are needed, and may be evicted again later
+ * An inactive channel may be archived by MessageServer.archiver, and is restored from its archive the next time its messages are needed
+ * Once counted, the channel tells MessageServer.blobs whenever one of its messages starts or stops using a file
+ * Clients only ever see a ChannelSummary of it
  */
 
 class Channel implements java.io.Serializable, Comparable<Channel> {
     private static final long serialVersionUID = 2L;
+    private long id; // Assigned by ChannelList, 0 until then
+    private long lastSequence; // Sequence number of the last message added
     private String group;
     private String name;
     private String owner;
 
-    private ArrayList<Message> messages;
+    private ArrayList<Message> messages; // Only set in channel lists saved with Java serialization, moved into index on load
+
+    private transient TreeMap<Long, Message> index; // Messages by sequence number, null while not loaded from the metadata store
+    private transient MetadataStore store;
+    private transient int storedCount; // Number of messages while not loaded
+    private transient long version; // Changes with every message added, removed or updated, for MessageServer.responseCache
+    private transient long lastUsed; // When messages were last read or added, 0 if not since startup
+    private transient ChannelArchive archive; // Holds the messages while the channel is archived, otherwise null
+    private transient boolean counted; // Its messages' files are counted in MessageServer.blobs
 
     public Channel(String _owner, String _group, String _name) {
         group = _group;
         name = _name;
         owner = _owner;
-        messages = new ArrayList<Message>();
+        index = new TreeMap<Long, Message>();
+    }
+
+    // Channel whose messages are still in the store
+    public Channel(String _owner, String _group, String _name, MetadataStore _store, int _count) {
+        group = _group;
+        name = _name;
+        owner = _owner;
+        index = null;
+        store = _store;
+        storedCount = _count;
+    }
+
+    // Channel whose messages are still in the store, with the ID and sequence it was saved with
+    public Channel(long _id, String _owner, String _group, String _name, MetadataStore _store, int _count, long _lastSequence) {
+        this(_owner, _group, _name, _store, _count);
+        id = _id;
+        lastSequence = _lastSequence;
+    }
+
+    public synchronized void attach(MetadataStore _store) {
+        store = _store;
+    }
+
+    private void ensureLoaded() {
+        if (index == null) {
+            try {
+                buildIndex(store.loadMessages(this));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load messages of channel " + name, e);
+            }
+        }
+        if (archive != null) restore();
+        if (store != null) store.touch(this);
+    }
+
+    /*
+     * Brings back the messages of an archived channel. Their files are written to the message store again under new names
+     * Messages the metadata store still had, when it hadn't saved the archiving before a restart, get the new paths
+     */
+    private void restore() {
+        ArrayList<Message> packed;
+        try {
+            packed = MessageServer.archiver.unpack(this, archive);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to restore archived channel " + name, e);
+        }
+        for (Message m: packed) {
+            m.setChannelId(id);
+            Message old = index.get(m.getSeq());
+            if (old != null) {
+                old.setPath(m.getPath());
+                m = old;
+            } else {
+                index.put(m.getSeq(), m);
+            }
+            lastSequence = Math.max(lastSequence, m.getSeq());
+            retain(m.getPath());
+            if (store != null) store.putMessage(this, m);
+        }
+        archive = null;
+        version++;
+    }
+
+    /*
+     * Drops the messages from heap and the metadata store now that a holds them, and returns their paths
+     * Returns null without changing anything if the channel changed since expectedVersion, since a is out of date then
+     */
+    public synchronized ArrayList<String> archive(ChannelArchive a, long expectedVersion) {
+        if (version != expectedVersion || archive != null) return null;
+        ensureLoaded();
+        ArrayList<String> paths = new ArrayList<String>();
+        for (Message m: index.values()) {
+            paths.add(m.getPath());
+            release(m.getPath());
+            if (store != null) store.removeMessage(this, m);
+        }
+        storedCount = index.size();
+        index = null;
+        archive = a;
+        version++;
+        return paths;
+    }
+
+    // Marks the channel as archived at startup, without touching its messages until they are needed
+    public synchronized void setArchive(ChannelArchive a) {
+        archive = a;
+        storedCount = a.getCount();
+    }
+
+    public synchronized boolean isArchived() {
+        return archive != null;
+    }
+
+    // Null unless the channel is archived
+    public synchronized ChannelArchive getArchive() {
+        return archive;
+    }
+
+    public synchronized long getLastUsed() {
+        return lastUsed;
+    }
+
+    /*
+     * Counts the files of all messages with MessageServer.blobs, once at startup or when the channel is created
+     * From then on every message added or removed changes the counts. An archived channel has nothing to count
+     * A channel that isn't loaded is counted from the store and stays unloaded. It loads the same messages later
+     */
+    public synchronized void countReferences() {
+        if (counted) return;
+        for (Message m: readMessages()) {
+            MessageServer.blobs.retain(m.getPath());
+        }
+        counted = true;
+    }
+
+    // Drops the references of all messages, when the channel is deleted. Call before removing it from the store
+    public synchronized void releaseReferences() {
+        if (!counted) return;
+        for (Message m: readMessages()) {
+            MessageServer.blobs.release(m.getPath());
+        }
+        counted = false;
+    }
+
+    private void retain(String path) {
+        if (counted) MessageServer.blobs.retain(path);
     }
 
-    public synchronized Message getMessage(int index) {
-        return messages.get(index);
+    private void release(String path) {
+        if (counted) MessageServer.blobs.release(path);
+    }
+
+    /*
+     * Messages saved before they had sequence numbers are numbered in the order they were stored,
+     * and passed back to the store so the numbers stick
+     */
+    private void buildIndex(ArrayList<Message> loaded) {
+        index = new TreeMap<Long, Message>();
+        ArrayList<Message> numbered = number(loaded);
+        for (Message m: loaded) {
+            index.put(m.getSeq(), m);
+        }
+        if (!loaded.isEmpty()) lastSequence = Math.max(lastSequence, loaded.get(loaded.size() - 1).getSeq());
+        if (store != null) {
+            for (Message m: numbered) {
+                store.putMessage(this, m);
+            }
+        }
     }
 
+    // Gives stored messages their channel ID and any missing sequence numbers, and returns the ones that were missing one
+    private ArrayList<Message> number(ArrayList<Message> stored) {
+        ArrayList<Message> numbered = new ArrayList<Message>();
+        long seq = 0;
+        for (Message m: stored) {
+            if (m.getSeq() == 0) {
+                m.setSeq(seq + 1);
+                numbered.add(m);
+            }
+            m.setChannelId(id);
+            seq = m.getSeq();
+        }
+        return numbered;
+    }
+
+    /*
+     * All messages in sequence order, for scans that look at every channel once
+     * A channel that isn't loaded stays that way, so the scan doesn't leave every channel in heap
+     * The messages read are copies, and only those of a loaded channel are the ones in it. An archived channel has none
+     */
+    public synchronized ArrayList<Message> readMessages() {
+        if (archive != null) return new ArrayList<Message>();
+        if (index != null) return new ArrayList<Message>(index.values());
+        try {
+            ArrayList<Message> stored = store.readMessages(this);
+            number(stored);
+            return stored;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read messages of channel " + name, e);
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return index != null;
+    }
+
+    // Messages in sequence order if they are in heap, otherwise null. Doesn't load anything
+    public synchronized ArrayList<Message> getLoadedMessages() {
+        if (index == null) return null;
+        return new ArrayList<Message>(index.values());
+    }
+
+    // Drops the messages from heap. Only safe when the store already has every change
+    public synchronized void evict() {
+        if (index == null) return;
+        storedCount = index.size();
+        index = null;
+    }
+
+    public synchronized int getMessageCount() {
+        if (index == null || archive != null) return storedCount;
+        return index.size();
+    }
+
+    // Returns null if there is no message with that sequence number
+    public synchronized Message getMessage(long seq) {
+        ensureLoaded();
+        return index.get(seq);
+    }
+
+    // Up to limit messages with sequence numbers of at least fromSeq, in order
+    public synchronized ArrayList<Message> getMessages(long fromSeq, int limit) {
+        ensureLoaded();
+        lastUsed = System.currentTimeMillis();
+        ArrayList<Message> range = new ArrayList<Message>();
+        for (Message m: index.tailMap(fromSeq, true).values()) {
+            if (range.size() >= limit) break;
+            range.add(m);
+        }
+        return range;
+    }
+
+    // Gives the message the next sequence number and a timestamp, then adds it
     public synchronized void addMessage(Message message) {
-        messages.add(message);
+        ensureLoaded();
+        message.setChannelId(id);
+        message.setSeq(++lastSequence);
+        message.setTimestamp(System.currentTimeMillis());
+        lastUsed = message.getTimestamp();
+        index.put(message.getSeq(), message);
+        retain(message.getPath());
+        version++;
+        if (store != null) store.putMessage(this, message);
     }
 
     public synchronized boolean removeMessage(Message message) {
-        return false;
+        return removeMessage(message.getSeq()) != null;
     }
 
-    public synchronized void removeMessage(int index) {
-        messages.remove(index);
+    // Returns the removed message, or null if there was none with that sequence number
+    public synchronized Message removeMessage(long seq) {
+        ensureLoaded();
+        Message message = index.remove(seq);
+        if (message != null) {
+            release(message.getPath());
+            version++;
+        }
+        if (message != null && store != null) store.removeMessage(this, message);
+        return message;
+    }
+
+    // Call after changing a message's fields so the store picks up the change
+    public synchronized void updateMessage(Message message) {
+        version++;
+        if (store != null) store.putMessage(this, message);
+    }
+
+    // Applies a message added or changed before a restart, from SnapshotMetadataStore's journal. Applying it twice changes nothing
+    public synchronized void replayMessage(Message message) {
+        ensureLoaded();
+        message.setChannelId(id);
+        index.put(message.getSeq(), message);
+        lastSequence = Math.max(lastSequence, message.getSeq());
+        version++;
+    }
+
+    // Like replayMessage, for a removed message
+    public synchronized void replayRemove(long seq) {
+        ensureLoaded();
+        if (index.remove(seq) != null) version++;
+    }
+
+    // Points a message at a new file, like updateMessage. Blobs may be shared, so a new text never overwrites the old file
+    public synchronized void replacePath(Message message, String path) {
+        retain(path);
+        release(message.getPath());
+        message.setPath(path);
+        updateMessage(message);
+    }
+
+    public synchronized long getId() {
+        return id;
+    }
+
+    public synchronized void setId(long _id) {
+        id = _id;
+        if (index != null) {
+            for (Message m: index.values()) {
+                m.setChannelId(id);
+            }
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Doesn't load the messages
+    public synchronized ChannelSummary getSummary() {
+        return new ChannelSummary(id, group, name, owner, getMessageCount(), lastSequence);
     }
 
     public synchronized String getGroup() {
@@ -52,8 +357,17 @@ class Channel implements java.io.Serializable, Comparable<Channel> {
         return owner;
     }
 
+    // All messages in sequence order
     public synchronized ArrayList<Message> getMessages() {
-        return messages;
+        ensureLoaded();
+        return new ArrayList<Message>(index.values());
+    }
+
+    // Channel lists saved with Java serialization carry their messages in a list
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buildIndex(messages != null ? messages : new ArrayList<Message>());
+        messages = null;
     }
 
     public int compareTo(Channel rhs) {
@@ -71,4 +385,4 @@ class Channel implements java.io.Serializable, Comparable<Channel> {
             return 2;
         }
 	}
-}
\ No newline at end of file
+}
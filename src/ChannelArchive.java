@@ -0,0 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * One archived channel: its messages and their files packed into a single file under the archive directory
+ * Layout: int magic, int version, channel ID, message count, total message length, oldest and newest timestamp,
+ * int index length, deflated index, message files
+ * The index holds each message like a ChannelSnapshot block followed by the size of its file, and the files follow in the same order
+ * Message files are copied as they are, since they are ciphertext and wouldn't get any smaller
+ * Opening an archive only reads the header, which is all the host server keeps in heap for an archived channel
+ */
+
+public class ChannelArchive {
+
+    private static final int MAGIC = 0x43484152; // "CHAR"
+    private static final int VERSION = 2; // Version 1 index entries have no message format
+    static final String SUFFIX = ".arc";
+
+    private File file;
+    private long channelId;
+    private int count;
+    private long bytes; // Sum of the message lengths, as retention policies count them
+    private long oldest; // Oldest and newest message timestamp, 0 if no message has one
+    private long newest;
+
+    private ChannelArchive(File _file) {
+        file = _file;
+    }
+
+    // Archive file of a channel in dir
+    public static File fileOf(File dir, long channelId) {
+        return new File(dir, channelId + SUFFIX);
+    }
+
+    /*
+     * Packs messages of a channel, in sequence order, together with their files from store
+     * The archive is written to a temporary file and only renamed into place once it is on disk
+     */
+    public static ChannelArchive write(File dir, long channelId, List<Message> messages, MessageStore store) throws IOException {
+        ChannelArchive a = new ChannelArchive(fileOf(dir, channelId));
+        a.channelId = channelId;
+        a.count = messages.size();
+        ArrayList<File> bodies = new ArrayList<File>();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(new DeflaterOutputStream(index));
+        for (Message m: messages) {
+            File body = store.fileFor(m.getPath());
+            if (!body.isFile()) throw new IOException("Message file " + m.getPath() + " is missing");
+            bodies.add(body);
+            ChannelSnapshot.writeMessage(indexOut, m);
+            indexOut.writeLong(body.length());
+            a.bytes += m.getLength();
+            if (a.oldest == 0) a.oldest = m.getTimestamp(); // First one that has a timestamp
+            a.newest = Math.max(a.newest, m.getTimestamp());
+        }
+        indexOut.close();
+
+        File temp = File.createTempFile("arc", ".tmp", dir);
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(a.channelId);
+            out.writeInt(a.count);
+            out.writeLong(a.bytes);
+            out.writeLong(a.oldest);
+            out.writeLong(a.newest);
+            out.writeInt(index.size());
+            index.writeTo(out);
+            for (File body: bodies) {
+                long expected = body.length();
+                if (Files.copy(body.toPath(), out) != expected) throw new IOException("Message file " + body + " changed while archiving");
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            fileOut.close();
+            Files.move(temp.toPath(), a.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            fileOut.close();
+            temp.delete();
+            throw e;
+        }
+        MessageStore.syncDir(dir);
+        return a;
+    }
+
+    // Reads the header of an archive file
+    public static ChannelArchive open(File file) throws IOException {
+        ChannelArchive a = new ChannelArchive(file);
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a channel archive: " + file);
+            int version = in.readInt();
+            if (version > VERSION) throw new IOException("Unsupported channel archive version " + version + ": " + file);
+            a.channelId = in.readLong();
+            a.count = in.readInt();
+            a.bytes = in.readLong();
+            a.oldest = in.readLong();
+            a.newest = in.readLong();
+        } finally {
+            in.close();
+        }
+        return a;
+    }
+
+    /*
+     * Writes the packed message files back into blobs and returns the messages pointing at them
+     * Files are written batchBytes at a time, each batch committed together. Blobs still on disk are reused
+     * The archive file itself is left alone, delete it once the metadata store has the new paths
+     */
+    public ArrayList<Message> unpack(String group, String channel, BlobStore blobs, long batchBytes) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            in.readInt(); // Magic and header, checked by open
+            int version = in.readInt();
+            in.readLong();
+            int n = in.readInt();
+            in.readLong();
+            in.readLong();
+            in.readLong();
+            byte[] index = new byte[in.readInt()];
+            in.readFully(index);
+            DataInputStream indexIn = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(index)));
+            ArrayList<Message> messages = new ArrayList<Message>(n);
+            long[] sizes = new long[n];
+            for (int i = 0; i < n; i++) {
+                messages.add(ChannelSnapshot.readMessage(indexIn, group, channel, version >= 2 ? 4 : 3));
+                sizes[i] = indexIn.readLong();
+            }
+
+            ArrayList<byte[]> batch = new ArrayList<byte[]>();
+            long batched = 0;
+            int written = 0;
+            for (int i = 0; i < n; i++) { // On failure the blobs written so far are unreferenced and get collected
+                if (sizes[i] > Integer.MAX_VALUE) throw new IOException("Message file too large in " + file);
+                byte[] body = new byte[(int)sizes[i]];
+                in.readFully(body);
+                batch.add(body);
+                batched += body.length;
+                if (batched >= batchBytes || i == n - 1) {
+                    for (File f: blobs.writeAll(batch)) {
+                        messages.get(written++).setPath(f.getName());
+                    }
+                    batch.clear();
+                    batched = 0;
+                }
+            }
+            return messages;
+        } finally {
+            in.close();
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getChannelId() {
+        return channelId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getOldest() {
+        return oldest;
+    }
+
+    public long getNewest() {
+        return newest;
+    }
+}
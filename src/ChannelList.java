@@ -1,35 +1,69 @@
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Hashtable;
 
 /*
  * Maintains an ArrayList of all channels in the host server
  * Can be found as MessageServer.channelList
- * Stored in ChannelList.bin
+ * Changes are passed on to the metadata store it was loaded from
+ * Hands out the channel IDs clients use to address channels. IDs are never reused
  */
 
 public class ChannelList implements java.io.Serializable {
 		
 	private static final long serialVersionUID = 3L;
 	private ArrayList<Channel> channels;
+	private long nextId = 1;
+	private transient Hashtable<Long, Channel> byId;
+	private transient MetadataStore store;
 	
 	public ChannelList() {
 		channels = new ArrayList<Channel>();
+		byId = new Hashtable<Long, Channel>();
+	}
+
+	/*
+	 * Sets the store that changes are passed on to, for this list and all of its channels
+	 * Also rebuilds the ID index, and gives IDs to channels from lists saved before channels had them
+	 */
+	public synchronized void attach(MetadataStore _store) {
+		store = _store;
+		byId = new Hashtable<Long, Channel>();
+		for (Channel c: channels) {
+			nextId = Math.max(nextId, c.getId() + 1);
+		}
+		for (Channel c: channels) {
+			if (c.getId() == 0) c.setId(nextId++);
+			byId.put(c.getId(), c);
+			c.attach(_store);
+		}
 	}
 	
+	// Adds a channel that the store already knows about
 	public synchronized void addChannel(Channel channel) {
 		channels.add(channel);
+		if (channel.getId() != 0) {
+			byId.put(channel.getId(), channel);
+			nextId = Math.max(nextId, channel.getId() + 1);
+		}
 	}
 
 	public synchronized Channel addChannel(String group, String name, String owner) {
 		Channel channel = new Channel(owner, group, name);
+		channel.setId(nextId++);
+		channel.attach(store);
 		channels.add(channel);
+		byId.put(channel.getId(), channel);
+		if (store != null) store.addChannel(channel);
 		return channel;
 	}
 	
 	public synchronized boolean removeChannel(String group, String name) {
 		for (int i = 0; i < channels.size(); i++) {
 			if ((group.compareTo(channels.get(i).getGroup()) == 0) && (name.compareTo(channels.get(i).getName()) == 0)) {
-				channels.remove(i);
+				Channel channel = channels.remove(i);
+				byId.remove(channel.getId());
+				if (store != null) store.removeChannel(channel);
                 return true;
 			}
 		}
@@ -54,6 +88,24 @@ public class ChannelList implements java.io.Serializable {
 		return null;
     }
 
+	public synchronized Channel getChannel(long id) {
+		return byId.get(id);
+	}
+
+	public synchronized long getNextId() {
+		return nextId;
+	}
+
+	// Used by stores that save the next ID themselves, so IDs of deleted channels aren't handed out again
+	public synchronized void setNextId(long _nextId) {
+		nextId = Math.max(nextId, _nextId);
+	}
+
+	// Copy of the channel list that can be walked while other threads change it
+	public synchronized ArrayList<Channel> copyChannels() {
+		return new ArrayList<Channel>(channels);
+	}
+
 	public synchronized ArrayList<Channel> getChannels() {
 		Collections.sort(channels);
 		return channels;
@@ -0,0 +1,234 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/*
+ * Compact on-disk format for ChannelList.bin
+ * Layout: int magic, int version, int directory length, channel directory, message blocks
+ * The directory starts with the next channel ID and has one entry per channel:
+ * ID, group, name, owner, message count, last sequence, block offset and block length
+ * Version 1 directories have no channel IDs or sequences, messages before version 3 have no sequence number or timestamp,
+ * and messages before version 4 have no format
+ * Each block holds the messages of one channel: owner, path, key index, IV, length, sequence number, timestamp and format of each message
+ * Group and channel names are not repeated for every message since the block already implies them
+ * Opening a snapshot only reads the directory. Blocks are read one at a time with readBlock
+ */
+
+public class ChannelSnapshot {
+
+    private static final int MAGIC = 0x43484C53; // "CHLS"
+    static final int VERSION = 4;
+    private static final int HEADER_BYTES = 12;
+
+    private RandomAccessFile file;
+    private int version;
+    private long dataStart;
+    private long nextId;
+    private ArrayList<Entry> entries;
+
+    private ChannelSnapshot(RandomAccessFile _file, int _version, long _dataStart, long _nextId, ArrayList<Entry> _entries) {
+        file = _file;
+        version = _version;
+        dataStart = _dataStart;
+        nextId = _nextId;
+        entries = _entries;
+    }
+
+    // Whether the file is in this format rather than plain Java serialization
+    public static boolean isSnapshot(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(path));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static ChannelSnapshot open(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        if (raf.readInt() != MAGIC) {
+            raf.close();
+            throw new IOException("Not a channel snapshot: " + path);
+        }
+        int version = raf.readInt();
+        if (version > VERSION) {
+            raf.close();
+            throw new IOException("Unsupported channel list version " + version);
+        }
+        byte[] dir = new byte[raf.readInt()];
+        raf.readFully(dir);
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        DataInputStream dirIn = new DataInputStream(new ByteArrayInputStream(dir));
+        long nextId = version >= 2 ? dirIn.readLong() : 1;
+        int count = dirIn.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry();
+            if (version >= 2) e.id = dirIn.readLong();
+            e.group = dirIn.readUTF();
+            e.name = dirIn.readUTF();
+            e.owner = dirIn.readUTF();
+            e.count = dirIn.readInt();
+            e.lastSequence = version >= 2 ? dirIn.readLong() : e.count;
+            e.offset = dirIn.readLong();
+            e.length = dirIn.readInt();
+            entries.add(e);
+        }
+        return new ChannelSnapshot(raf, version, HEADER_BYTES + dir.length, nextId, entries);
+    }
+
+    /*
+     * Writes a snapshot to path through a temporary file
+     * Fills in the offset and length of each entry from its block
+     */
+    public static void write(String path, long nextId, ArrayList<Entry> entries, ArrayList<byte[]> blocks) throws IOException {
+        ByteArrayOutputStream dirBytes = new ByteArrayOutputStream();
+        DataOutputStream dirOut = new DataOutputStream(dirBytes);
+        dirOut.writeLong(nextId);
+        dirOut.writeInt(entries.size());
+        long offset = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            e.offset = offset;
+            e.length = blocks.get(i).length;
+            dirOut.writeLong(e.id);
+            dirOut.writeUTF(e.group);
+            dirOut.writeUTF(e.name);
+            dirOut.writeUTF(e.owner);
+            dirOut.writeInt(e.count);
+            dirOut.writeLong(e.lastSequence);
+            dirOut.writeLong(e.offset);
+            dirOut.writeInt(e.length);
+            offset += e.length;
+        }
+        dirOut.close();
+
+        File tmp = new File(path + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dirBytes.size());
+            dirBytes.writeTo(out);
+            for (byte[] block: blocks) {
+                out.write(block);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Version the snapshot was written with, needed to decode its blocks
+    public int getVersion() {
+        return version;
+    }
+
+    public long getNextId() {
+        return nextId;
+    }
+
+    public ArrayList<Entry> getEntries() {
+        return entries;
+    }
+
+    public synchronized byte[] readBlock(long offset, int length) throws IOException {
+        byte[] block = new byte[length];
+        file.seek(dataStart + offset);
+        file.readFully(block);
+        return block;
+    }
+
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    public static byte[] encodeMessages(ArrayList<Message> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(messages.size());
+        for (Message m: messages) {
+            writeMessage(out, m);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static ArrayList<Message> decodeMessages(String group, String channel, byte[] block, int version) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        int count = in.readInt();
+        ArrayList<Message> messages = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(readMessage(in, group, channel, version));
+        }
+        return messages;
+    }
+
+    // Message fields other than group and channel, shared with LsmMetadataStore
+    public static void writeMessage(DataOutputStream out, Message m) throws IOException {
+        out.writeUTF(m.getOwner());
+        out.writeUTF(m.getPath());
+        out.writeInt(m.getKeyIndex());
+        byte[] iv = m.getIv();
+        if (iv == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(iv.length);
+            out.write(iv);
+        }
+        out.writeInt(m.getLength());
+        out.writeLong(m.getSeq());
+        out.writeLong(m.getTimestamp());
+        out.writeInt(m.getFormat());
+    }
+
+    // Messages written by an older version stop after the length, or after the timestamp
+    public static Message readMessage(DataInputStream in, String group, String channel, int version) throws IOException {
+        String owner = in.readUTF();
+        String path = in.readUTF();
+        int keyIndex = in.readInt();
+        int ivLength = in.readInt();
+        byte[] iv = null;
+        if (ivLength >= 0) {
+            iv = new byte[ivLength];
+            in.readFully(iv);
+        }
+        int length = in.readInt();
+        Message m = new Message(owner, group, channel, path, keyIndex, iv, length);
+        if (version >= 3) {
+            m.setSeq(in.readLong());
+            m.setTimestamp(in.readLong());
+        }
+        if (version >= 4) m.setFormat(in.readInt());
+        return m;
+    }
+
+    // One channel in the directory
+    public static class Entry {
+        public long id; // 0 in version 1 snapshots
+        public String group;
+        public String name;
+        public String owner;
+        public int count;
+        public long lastSequence;
+        public long offset;
+        public int length;
+    }
+}
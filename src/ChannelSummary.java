@@ -0,0 +1,50 @@
+/*
+ * Small description of a channel that is sent to clients in place of the Channel itself
+ * Clients list channels with these and address them by ID, so requests and responses
+ * don't grow with the channel's history
+ * lastSequence goes up every time a message is added, so clients can tell whether a channel changed
+ */
+
+public class ChannelSummary implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private long id;
+    private String group;
+    private String name;
+    private String owner;
+    private int messageCount;
+    private long lastSequence;
+
+    public ChannelSummary(long _id, String _group, String _name, String _owner, int _messageCount, long _lastSequence) {
+        id = _id;
+        group = _group;
+        name = _name;
+        owner = _owner;
+        messageCount = _messageCount;
+        lastSequence = _lastSequence;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+}
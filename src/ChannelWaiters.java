@@ -0,0 +1,62 @@
+import java.util.Hashtable;
+
+/*
+ * Lets MessageThreads block until a channel gets new messages, for WAITMESSAGES
+ * Each channel with someone waiting has a queue object that waiters sleep on
+ * sendMessage wakes a channel's queue after adding a message
+ * Waiters check the channel's last sequence number with the queue's lock held, so a wake-up can't be missed
+ * Queues are dropped once nobody waits on them
+ */
+
+public class ChannelWaiters {
+
+    private Hashtable<Long, Queue> queues;
+
+    public ChannelWaiters() {
+        queues = new Hashtable<Long, Queue>();
+    }
+
+    // Returns true once the channel has a message after afterSeq, or false if timeout milliseconds pass first
+    public boolean await(Channel channel, long afterSeq, long timeout) throws InterruptedException {
+        Queue q;
+        synchronized (this) {
+            q = queues.get(channel.getId());
+            if (q == null) {
+                q = new Queue();
+                queues.put(channel.getId(), q);
+            }
+            q.waiting++;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (q) {
+                while (channel.getLastSequence() <= afterSeq) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) return false;
+                    q.wait(left);
+                }
+                return true;
+            }
+        } finally {
+            synchronized (this) {
+                if (--q.waiting == 0) queues.remove(channel.getId());
+            }
+        }
+    }
+
+    public void wake(long channelId) {
+        Queue q = queues.get(channelId);
+        if (q == null) return;
+        synchronized (q) {
+            q.notifyAll();
+        }
+    }
+
+    public synchronized int size() {
+        return queues.size();
+    }
+
+    private static class Queue {
+        private int waiting = 0;
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Deflate applied before encryption, since ciphertext doesn't compress
+ * Session payloads, the serialized Envelopes CryptoSuite encrypts, are deflated with a preset dictionary:
+ * the serialized form of typical envelopes, so the class descriptors every envelope repeats shrink to back-references
+ * The dictionary is built from the classes themselves, so peers with other versions of them may build another one.
+ * Its ID is the Adler-32 that zlib also records in each stream. The host server advertises it when a session starts,
+ * and the client only deflates, and asks for deflated responses, when its own dictionary has the same ID
+ * A deflated payload starts with a zlib header and a serialized one with 0xACED, so decryption tells them apart on its own
+ * Every payload is deflated on its own, nothing carries over from one to the next
+ * Compressed length still depends on content: a payload that holds a secret next to text an attacker chose
+ * leaks how much the two have in common, as in CRIME and BREACH
+ * Message texts are deflated without a dictionary, only when the sender asks for it, see Message.FORMAT_DEFLATED
+ */
+
+public class Compression {
+
+    public static final byte[] SESSION_DICTIONARY = sessionDictionary();
+    public static final int SESSION_DICTIONARY_ID = adler(SESSION_DICTIONARY);
+
+    // Deflates data with the preset dictionary, which may be null, and returns null if that doesn't make it shorter
+    public static byte[] deflate(byte[] data, byte[] dictionary) {
+        Deflater d = new Deflater();
+        try {
+            if (dictionary != null) d.setDictionary(dictionary);
+            d.setInput(data);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!d.finished()) {
+                out.write(buf, 0, d.deflate(buf));
+                if (out.size() >= data.length) return null;
+            }
+            return out.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    // Inflates what deflate returned with the same dictionary. Throws rather than produce more than maxBytes
+    public static byte[] inflate(byte[] data, byte[] dictionary, int maxBytes) throws IOException {
+        Inflater i = new Inflater();
+        try {
+            i.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxBytes, data.length * 4));
+            byte[] buf = new byte[8192];
+            while (!i.finished()) {
+                int n = i.inflate(buf);
+                if (n == 0) {
+                    if (i.needsDictionary()) {
+                        if (dictionary == null || i.getAdler() != adler(dictionary)) throw new IOException("Deflated with another dictionary");
+                        i.setDictionary(dictionary);
+                        continue;
+                    }
+                    if (i.needsInput()) throw new IOException("Deflated data is cut short");
+                }
+                if (out.size() + n > maxBytes) throw new IOException("Inflates to more than " + maxBytes + " bytes");
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Bad deflated data", e);
+        } finally {
+            i.end();
+        }
+    }
+
+    // True for a session payload deflated by deflate, false for a serialized Envelope
+    public static boolean isDeflated(byte[] payload) {
+        return payload.length > 0 && payload[0] == 0x78; // zlib with a 32K window, where serialization starts with 0xAC
+    }
+
+    private static int adler(byte[] data) {
+        Adler32 a = new Adler32();
+        a.update(data);
+        return (int)a.getValue();
+    }
+
+    /*
+     * A request and the responses clients read most, serialized the way envelopes are sent
+     * Deflate finds matches closest to the end of the dictionary most cheaply, so the most common envelope comes last
+     */
+    private static byte[] sessionDictionary() {
+        byte[] iv = new byte[16];
+        Message m = new Message("owner", "group", "channel", BlobStore.PREFIX, 0, iv, 0);
+        ArrayList<ChannelSummary> channels = new ArrayList<ChannelSummary>();
+        channels.add(new ChannelSummary(1L, "group", "channel", "owner", 0, 0L));
+        Envelope channelList = new Envelope("OK");
+        channelList.addObject(channels);
+
+        ArrayList<MessageAndText> texts = new ArrayList<MessageAndText>();
+        texts.add(new MessageAndText(m, new byte[0]));
+        Envelope page = new Envelope("OK");
+        page.addObject(texts);
+        page.addObject(-1L);
+
+        Envelope op = new Envelope("SENDMESSAGE");
+        op.addObject(1L);
+        op.addObject(new byte[0]);
+        op.addObject(0);
+        op.addObject(iv);
+        Envelope hostToken = new Envelope("HOSTTOKEN");
+        hostToken.addObject(new byte[0]);
+        hostToken.addObject(iv);
+        ArrayList<String> groups = new ArrayList<String>();
+        groups.add("group");
+        Envelope request = new Envelope("OPERATIONDATA");
+        request.addObject(op);
+        request.addObject(new Token("subject", groups, hostToken, new byte[0]));
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        try {
+            for (Envelope env: new Envelope[] {channelList, request, page}) {
+                ObjectOutputStream out = new ObjectOutputStream(dictionary);
+                out.writeObject(env);
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return dictionary.toByteArray();
+    }
+}
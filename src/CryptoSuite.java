@@ -1,5 +1,6 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Base64;
@@ -23,6 +24,7 @@ import javax.crypto.KeyGenerator;
  * Symmetric key: 256-bit AES with CBC and PKCS5Padding
  * Asymmetric key: 2048-bit RSA with SHA-256 for hashing
  * Passwords use a 64-bit salt
+ * Session payloads and message texts may be deflated before they are encrypted, see Compression
  */
 
 public class CryptoSuite {
@@ -30,8 +32,10 @@ public class CryptoSuite {
     private Signature sign;
     private PrivateKey privateKey;
     private MessageDigest md;
-    private Cipher aes;
+    private Cipher aes; // Shared by every thread using this suite, so the methods that use it are synchronized
     private Cipher rsa;
+    private static final int MAX_TEXT_BYTES = 1 << 20; // Largest a deflated message text may inflate to
+    private int maxInflatedBytes = Integer.MAX_VALUE; // Largest session payload a deflated one may inflate to
 
 
     public CryptoSuite(PublicKey _publicKey, PrivateKey _privateKey) {
@@ -148,11 +152,37 @@ public class CryptoSuite {
         return ivb;
     }
 
+    public void setMaxInflatedBytes(int _maxInflatedBytes) {
+        maxInflatedBytes = _maxInflatedBytes;
+    }
+
     // This is stupid, but it encrypts an Envelope in AES and then returns an Envelope with the encrypted envelope nested inside of it
     // Returned envelope has encrypted byte[] at index 0 and initialization vector byte[] at index 1
     public Envelope encryptEnvelopeAES(Envelope env, String msg, Key key) {
-        Envelope enc = new Envelope(msg);
+        return encryptBytesAES(envelopeToBytes(env), msg, key);
+    }
+
+    // Same, deflating the serialized Envelope first if deflate is set and that makes it shorter
+    public Envelope encryptEnvelopeAES(Envelope env, String msg, Key key, boolean deflate) {
+        return encryptBytesAES(encodeEnvelope(env, deflate), msg, key);
+    }
+
+    // Serializes an Envelope once, so it can be encrypted for many sessions with encryptBytesAES
+    public byte[] encodeEnvelope(Envelope env) {
+        return envelopeToBytes(env);
+    }
+
+    // Same, deflated with the session dictionary if deflate is set and that makes it shorter
+    public byte[] encodeEnvelope(Envelope env, boolean deflate) {
         byte[] eBytes = envelopeToBytes(env);
+        if (!deflate || eBytes == null) return eBytes;
+        byte[] deflated = Compression.deflate(eBytes, Compression.SESSION_DICTIONARY);
+        return deflated != null ? deflated : eBytes;
+    }
+
+    // Same as encryptEnvelopeAES for an Envelope already serialized by encodeEnvelope
+    public synchronized Envelope encryptBytesAES(byte[] eBytes, String msg, Key key) {
+        Envelope enc = new Envelope(msg);
         byte[] ivb = generateAesIv();
         IvParameterSpec iv = new IvParameterSpec(ivb);
         try {
@@ -167,11 +197,12 @@ public class CryptoSuite {
         return null;
     }
 
-    public Envelope decryptEnvelopeAES(byte[] encBytes, byte[] ivb, Key key) {
+    public synchronized Envelope decryptEnvelopeAES(byte[] encBytes, byte[] ivb, Key key) {
         IvParameterSpec iv = new IvParameterSpec(ivb);
         try {
             aes.init(Cipher.DECRYPT_MODE, key, iv);
             byte[] eBytes = aes.doFinal(encBytes);
+            if (Compression.isDeflated(eBytes)) eBytes = Compression.inflate(eBytes, Compression.SESSION_DICTIONARY, maxInflatedBytes);
             return bytesToEnvelope(eBytes);
         } catch (Exception e) {
             e.printStackTrace(System.out);
@@ -225,7 +256,7 @@ public class CryptoSuite {
         return null;
     }
 
-    public byte[] encryptMessageAES(String message, SecretKey key, byte[] ivb) {
+    public synchronized byte[] encryptMessageAES(String message, SecretKey key, byte[] ivb) {
         try {
             IvParameterSpec iv = new IvParameterSpec(ivb);
             aes.init(Cipher.ENCRYPT_MODE, key, iv);
@@ -236,7 +267,7 @@ public class CryptoSuite {
         return null;
     }
 
-    public String decryptStringAES(byte[] encMessage, SecretKey key, byte[] ivb) {
+    public synchronized String decryptStringAES(byte[] encMessage, SecretKey key, byte[] ivb) {
         try {
             IvParameterSpec iv = new IvParameterSpec(ivb);
             aes.init(Cipher.DECRYPT_MODE, key, iv);
@@ -247,6 +278,69 @@ public class CryptoSuite {
         return null;
     }
 
+    // Like encryptMessageAES for text that is already bytes, such as deflated text
+    public synchronized byte[] encryptTextAES(byte[] text, SecretKey key, byte[] ivb) {
+        try {
+            IvParameterSpec iv = new IvParameterSpec(ivb);
+            aes.init(Cipher.ENCRYPT_MODE, key, iv);
+            return aes.doFinal(text);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
+    public synchronized byte[] decryptTextAES(byte[] encMessage, SecretKey key, byte[] ivb) {
+        try {
+            IvParameterSpec iv = new IvParameterSpec(ivb);
+            aes.init(Cipher.DECRYPT_MODE, key, iv);
+            return aes.doFinal(encMessage);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
+    // Decrypts a message text sent in one piece, inflating it if format is Message.FORMAT_DEFLATED
+    public String decryptMessageText(byte[] encMessage, SecretKey key, byte[] ivb, int format) {
+        byte[] text = decryptTextAES(encMessage, key, ivb);
+        if (text == null) return null;
+        if (format != Message.FORMAT_DEFLATED) return new String(text);
+        try {
+            return new String(Compression.inflate(text, null, MAX_TEXT_BYTES));
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
+    // SHA-256 of part of an array, for checking chunks of an upload or download
+    public byte[] hashChunk(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, offset, length);
+            return md.digest();
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
+    /*
+     * A cipher of its own for encrypting or decrypting a message a piece at a time with update
+     * Produces the same bytes as encryptMessageAES, without needing the whole message in memory
+     */
+    public Cipher messageCipher(int mode, SecretKey key, byte[] ivb) {
+        try {
+            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            c.init(mode, key, new IvParameterSpec(ivb));
+            return c;
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
     // Using an 8-byte m
     // Inputs are validated such that n is no longer than 8 bytes
     public boolean checkProblem(byte[] m, byte[] n, int b) {
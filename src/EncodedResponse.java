@@ -0,0 +1,20 @@
+/*
+ * OK response the host server has already serialized, usually taken from MessageServer.responseCache
+ * MessageThread encrypts its bytes as they are instead of serializing the Envelope again, so they are already deflated for sessions that deflate
+ * Never sent as is
+ */
+
+public class EncodedResponse extends Envelope {
+
+    private static final long serialVersionUID = 1L;
+    private transient byte[] encoded;
+
+    public EncodedResponse(byte[] _encoded) {
+        super("OK");
+        encoded = _encoded;
+    }
+
+    public byte[] getEncoded() {
+        return encoded;
+    }
+}
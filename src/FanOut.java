@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+/*
+ * Keeps track of which connections subscribed to which channels
+ * Can be found as MessageServer.fanOut
+ * publish only queues the message with each Subscriber, so sendMessage never waits on a slow client
+ */
+
+public class FanOut {
+
+    private Hashtable<Long, ArrayList<Subscriber>> subscribers;
+
+    public FanOut() {
+        subscribers = new Hashtable<Long, ArrayList<Subscriber>>();
+    }
+
+    public synchronized void subscribe(long channelId, Subscriber s) {
+        ArrayList<Subscriber> list = subscribers.get(channelId);
+        if (list == null) {
+            list = new ArrayList<Subscriber>();
+            subscribers.put(channelId, list);
+        }
+        if (!list.contains(s)) list.add(s);
+    }
+
+    public synchronized void unsubscribe(long channelId, Subscriber s) {
+        ArrayList<Subscriber> list = subscribers.get(channelId);
+        if (list == null) return;
+        list.remove(s);
+        if (list.isEmpty()) subscribers.remove(channelId);
+    }
+
+    public synchronized void unsubscribeAll(Subscriber s) {
+        Iterator<ArrayList<Subscriber>> it = subscribers.values().iterator();
+        while (it.hasNext()) {
+            ArrayList<Subscriber> list = it.next();
+            list.remove(s);
+            if (list.isEmpty()) it.remove();
+        }
+    }
+
+    // Called when a channel is deleted
+    public synchronized void removeChannel(long channelId) {
+        subscribers.remove(channelId);
+    }
+
+    public void publish(long channelId, MessageAndText message) {
+        ArrayList<Subscriber> list;
+        synchronized (this) {
+            if (!subscribers.containsKey(channelId)) return;
+            list = new ArrayList<Subscriber>(subscribers.get(channelId));
+        }
+        for (Subscriber s: list) {
+            s.offer(channelId, message);
+        }
+    }
+
+    public synchronized int getSubscriberCount(long channelId) {
+        ArrayList<Subscriber> list = subscribers.get(channelId);
+        return list == null ? 0 : list.size();
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.Hashtable;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Client-side cache of group keys so they survive between sessions
+ * Stored in GroupKeyCache.bin next to the client's key files
+ * Each user's GroupKeyMap is kept encrypted under the client master key from ClientMaster.bin
+ * Along with the version vector in GroupKeyMap, this lets the client only fetch new keys at login
+ */
+
+public class GroupKeyCache implements java.io.Serializable {
+    private static final long serialVersionUID = 324569L;
+
+    private Hashtable<String, Envelope> entries; // Username -> encrypted GroupKeyMap
+
+    public GroupKeyCache() {
+        entries = new Hashtable<String, Envelope>();
+    }
+
+    // Returns null if nothing is cached for the user or the entry can't be decrypted
+    public GroupKeyMap load(String username, CryptoSuite suite, SecretKey masterKey) {
+        Envelope enc = entries.get(username);
+        if (enc == null) return null;
+        try {
+            byte[] encBytes = (byte[]) enc.getObjContents().get(0);
+            byte[] iv = (byte[]) enc.getObjContents().get(1);
+            Envelope env = suite.decryptEnvelopeAES(encBytes, iv, masterKey);
+            if (env == null || !env.getMessage().equals("GROUPKEYS")) return null;
+            return (GroupKeyMap) env.getObjContents().get(0);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+        return null;
+    }
+
+    public void store(String username, GroupKeyMap keyMap, CryptoSuite suite, SecretKey masterKey) {
+        Envelope env = new Envelope("GROUPKEYS");
+        env.addObject(keyMap);
+        Envelope enc = suite.encryptEnvelopeAES(env, "GROUPKEYS", masterKey);
+        if (enc != null) {
+            entries.put(username, enc);
+        }
+    }
+}
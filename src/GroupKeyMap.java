@@ -3,21 +3,86 @@ import java.util.ArrayList;
 
 import javax.crypto.SecretKey;
 
+/*
+ * Group keys held by a client, along with a version vector describing them
+ * A GETGROUPKEYS response may only carry the keys the client was missing
+ * In that case the key list for a group starts at index (version - keys.size())
+ * and the client folds it into a copy of the map it already has with merge()
+ */
+
 public class GroupKeyMap implements java.io.Serializable {
     private static final long serialVersionUID = 324567L;
 
     private Hashtable<String, ArrayList<SecretKey>> keyMap;
+    private KeyVersionVector versions;
 
     public GroupKeyMap() {
         keyMap = new Hashtable<String, ArrayList<SecretKey>>();
+        versions = new KeyVersionVector();
     }
 
-    // Adds a new key for the group to use
+    // Adds the full key history for a group
     public void addGroupKeys(String group, ArrayList<SecretKey> keys) {
+        addGroupKeys(group, keys, 0, 0);
+    }
+
+    // Adds the keys of a group starting from key index base
+    public synchronized void addGroupKeys(String group, ArrayList<SecretKey> keys, int base, long epoch) {
         keyMap.put(group, keys);
+        versions.setVersion(group, epoch, base + keys.size());
     }
 
-    public ArrayList<SecretKey> getGroupKeys(String group) {
+    public synchronized ArrayList<SecretKey> getGroupKeys(String group) {
         return keyMap.get(group);
     }
+
+    public KeyVersionVector getVersions() {
+        return versions;
+    }
+
+    // A map holding the same keys that can be changed without touching this one
+    public synchronized GroupKeyMap copy() {
+        GroupKeyMap copy = new GroupKeyMap();
+        for (String group: versions.getGroups()) {
+            ArrayList<SecretKey> keys = keyMap.get(group);
+            if (keys == null) continue;
+            copy.keyMap.put(group, new ArrayList<SecretKey>(keys));
+            copy.versions.setVersion(group, versions.getEpoch(group), versions.getVersion(group));
+        }
+        return copy;
+    }
+
+    /*
+     * Folds an incremental GETGROUPKEYS response into this map
+     * Groups missing from the response are ones the user is no longer in, so they are dropped
+     * Returns false if some group's keys did not line up with what we have
+     * Those groups are left out so that a full fetch can fill them in
+     */
+    public synchronized boolean merge(GroupKeyMap delta) {
+        boolean complete = true;
+        Hashtable<String, ArrayList<SecretKey>> merged = new Hashtable<String, ArrayList<SecretKey>>();
+        KeyVersionVector mergedVersions = new KeyVersionVector();
+        KeyVersionVector deltaVersions = delta.getVersions();
+        for (String group: deltaVersions.getGroups()) {
+            ArrayList<SecretKey> newKeys = delta.getGroupKeys(group);
+            int version = deltaVersions.getVersion(group);
+            long epoch = deltaVersions.getEpoch(group);
+            int base = version - newKeys.size();
+            ArrayList<SecretKey> keys = keyMap.get(group);
+            if (base == 0) { // Full history for this group
+                keys = new ArrayList<SecretKey>(newKeys);
+            } else if (keys != null && versions.getEpoch(group) == epoch && keys.size() >= base) {
+                keys = new ArrayList<SecretKey>(keys.subList(0, base));
+                keys.addAll(newKeys);
+            } else { // Missing keys before base
+                complete = false;
+                continue;
+            }
+            merged.put(group, keys);
+            mergedVersions.setVersion(group, epoch, version);
+        }
+        keyMap = merged;
+        versions = mergedVersions;
+        return complete;
+    }
 }
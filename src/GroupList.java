@@ -10,6 +10,7 @@ public class GroupList implements java.io.Serializable {
 	/*Serializable so it can be stored in a file for persistence */
 	private static final long serialVersionUID = -8911161283900260136L;
 	private Hashtable<String, Group> list;
+	private long journalSeq; // Last journal record included in this checkpoint
 	
 	public GroupList()
 	{
@@ -18,7 +19,12 @@ public class GroupList implements java.io.Serializable {
 	
 	public synchronized void addGroup(String owner, String groupname, SecretKey key)
 	{
-		Group newGroup = new Group(owner, key);
+		addGroup(owner, groupname, key, System.currentTimeMillis());
+	}
+
+	public synchronized void addGroup(String owner, String groupname, SecretKey key, long epoch)
+	{
+		Group newGroup = new Group(owner, key, epoch);
 		list.put(groupname, newGroup);
 	}
 	
@@ -63,6 +69,14 @@ public class GroupList implements java.io.Serializable {
 		list.get(groupname).removeMember(username);
 	}
 
+	public synchronized long getJournalSeq() {
+		return journalSeq;
+	}
+
+	public synchronized void setJournalSeq(long seq) {
+		journalSeq = seq;
+	}
+
 	public synchronized ArrayList<SecretKey> getGroupKeys(String groupname) {
 		if (list.get(groupname) == null) {
 			return null;
@@ -73,16 +87,36 @@ public class GroupList implements java.io.Serializable {
 	public synchronized void addGroupKey(String groupname, SecretKey key) {
 		list.get(groupname).addKey(key);
 	}
+
+	// Drops keys below index below that no message uses anymore. The latest key is always kept
+	// Entries are set to null rather than removed so key indexes stay the same
+	public synchronized int retireGroupKeys(String groupname, int below) {
+		ArrayList<SecretKey> keys = list.get(groupname).getKeys();
+		int retired = 0;
+		for (int i = 0; i < below && i < keys.size() - 1; i++) {
+			if (keys.get(i) != null) {
+				keys.set(i, null);
+				retired++;
+			}
+		}
+		return retired;
+	}
+
+	public synchronized long getGroupEpoch(String groupname) {
+		return list.get(groupname).getEpoch();
+	}
 		
 	class Group implements java.io.Serializable {
 		private static final long serialVersionUID = 4258398564172781667L;
 		private String owner;
 		private ArrayList<String> members;
 		private ArrayList<SecretKey> keyList;
+		private long epoch; // Creation time, tells a recreated group apart from the old one. 0 for older groups
 		
-		public Group(String owner, SecretKey key)
+		public Group(String owner, SecretKey key, long epoch)
 		{
 			this.owner = owner;
+			this.epoch = epoch;
 			members = new ArrayList<String>();
 			this.addMember(owner);
 			keyList = new ArrayList<SecretKey>();
@@ -122,5 +156,9 @@ public class GroupList implements java.io.Serializable {
 		public void addKey(SecretKey gk) {
 			keyList.add(gk);
 		}
+
+		public long getEpoch() {
+			return epoch;
+		}
 	}
 }	
@@ -0,0 +1,186 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead journal of Envelope records, used by both servers
+ * Each record is stored as: int length, long sequence number, int CRC32, serialized Envelope
+ * Records are named after the operation and hold everything needed to redo it
+ *
+ * The state the records apply to is saved by checkpoints, which remember the last sequence number they include
+ * A checkpoint first rotates the journal to <path>.old so new records keep going to a fresh file,
+ * and the old one is deleted once the checkpoint is safely on disk
+ * On startup, records from both files newer than the checkpoint are replayed
+ *
+ * append() returns once its record is on disk. write() doesn't wait, and a later sync() makes it durable,
+ * so callers that can batch pay for one sync between them
+ * The authentication server journals user and group changes in AuthJournal.bin with append(),
+ * and SnapshotMetadataStore on the host server journals channel and message changes with write() and sync()
+ */
+
+public class Journal {
+
+    private String path;
+    private String oldPath;
+    private long lastSeq;
+    private long syncedSeq; // Records up to here are known to be on disk
+    private Object syncLock = new Object();
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+
+    public Journal(String _path) {
+        path = _path;
+        oldPath = _path + ".old";
+        lastSeq = 0;
+    }
+
+    /*
+     * Reads records with sequence number above afterSeq from the rotated and current journal files
+     * Stops at the first torn or corrupt record (a crash mid-append) and cuts it off the file
+     * Must be called before open()
+     */
+    public synchronized ArrayList<Envelope> replay(long afterSeq) throws IOException {
+        ArrayList<Envelope> records = new ArrayList<Envelope>();
+        lastSeq = afterSeq;
+        readFile(oldPath, afterSeq, records);
+        readFile(path, afterSeq, records);
+        return records;
+    }
+
+    public synchronized void open() throws IOException {
+        fileOut = new FileOutputStream(path, true);
+        out = new DataOutputStream(fileOut);
+    }
+
+    // Returns once the record is on disk
+    public synchronized long append(Envelope record) throws IOException {
+        write(record);
+        fileOut.getFD().sync();
+        syncedSeq = lastSeq;
+        return lastSeq;
+    }
+
+    // Appends without waiting for the disk. The record is durable once a later sync() returns
+    public synchronized long write(Envelope record) throws IOException {
+        byte[] bytes = Cryptounit.serialize(record);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        lastSeq++;
+        out.writeInt(bytes.length);
+        out.writeLong(lastSeq);
+        out.writeInt((int)crc.getValue());
+        out.write(bytes);
+        out.flush();
+        return lastSeq;
+    }
+
+    /*
+     * Returns once every record written so far is on disk
+     * The file is forced outside the journal lock, so writers carry on meanwhile,
+     * and callers waiting for one sync are covered by the next one instead of forcing the file again each
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = lastSeq;
+        }
+        synchronized (syncLock) {
+            FileOutputStream f;
+            long upTo;
+            synchronized (this) {
+                if (syncedSeq >= target) return;
+                f = fileOut;
+                upTo = lastSeq;
+            }
+            try {
+                f.getFD().sync();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (syncedSeq < upTo) throw e; // Otherwise rotate() forced the records and closed the file meanwhile
+                }
+            }
+            synchronized (this) {
+                syncedSeq = Math.max(syncedSeq, upTo);
+            }
+        }
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // Moves the current records aside so a checkpoint can be written while new records keep coming in
+    public synchronized void rotate() throws IOException {
+        fileOut.getFD().sync(); // Records written but not synced yet must not be lost with the rotated file
+        syncedSeq = lastSeq;
+        out.close();
+        File current = new File(path);
+        File old = new File(oldPath);
+        if (old.exists()) { // Last checkpoint failed, keep both sets of records
+            Files.write(old.toPath(), Files.readAllBytes(current.toPath()), StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+            current.delete();
+        } else if (!current.renameTo(old)) {
+            open();
+            throw new IOException("Could not rotate journal " + path);
+        }
+        open();
+    }
+
+    // Called once the checkpoint covering the rotated records is on disk
+    public synchronized void dropRotated() {
+        new File(oldPath).delete();
+    }
+
+    public synchronized void close() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private void readFile(String file, long afterSeq, ArrayList<Envelope> records) throws IOException {
+        File f = new File(file);
+        if (!f.exists()) return;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            while (true) {
+                int length = in.readInt();
+                long seq = in.readLong();
+                int sum = in.readInt();
+                if (length < 0 || length > f.length()) break;
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int)crc.getValue() != sum) break;
+                valid += 16 + length;
+                if (seq <= afterSeq) continue;
+                records.add((Envelope)Cryptounit.deserialize(bytes));
+                lastSeq = Math.max(lastSeq, seq);
+            }
+        } catch (EOFException e) {
+            // Torn record at the end of the file
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+        if (valid < f.length()) {
+            System.out.printf("Discarding %d bytes of incomplete journal records in %s\n", f.length() - valid, file);
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength(valid);
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/*
+ * Compact summary of which group keys a client holds
+ * For each group, keeps the epoch the group was created in and how many of its keys are known
+ * Epochs tell a recreated group apart from an old group with the same name
+ * Sent with GETGROUPKEYS so the authentication server only returns the keys a client is missing
+ */
+
+public class KeyVersionVector implements java.io.Serializable {
+    private static final long serialVersionUID = 324568L;
+
+    private Hashtable<String, Integer> versions;
+    private Hashtable<String, Long> epochs;
+
+    public KeyVersionVector() {
+        versions = new Hashtable<String, Integer>();
+        epochs = new Hashtable<String, Long>();
+    }
+
+    public synchronized void setVersion(String group, long epoch, int version) {
+        versions.put(group, version);
+        epochs.put(group, epoch);
+    }
+
+    public synchronized void removeGroup(String group) {
+        versions.remove(group);
+        epochs.remove(group);
+    }
+
+    public synchronized boolean hasGroup(String group) {
+        return versions.containsKey(group);
+    }
+
+    // Number of keys known for the group, 0 if the group is unknown
+    public synchronized int getVersion(String group) {
+        Integer version = versions.get(group);
+        if (version == null) return 0;
+        return version;
+    }
+
+    public synchronized long getEpoch(String group) {
+        Long epoch = epochs.get(group);
+        if (epoch == null) return 0;
+        return epoch;
+    }
+
+    public synchronized ArrayList<String> getGroups() {
+        return new ArrayList<String>(versions.keySet());
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Metadata store that writes every channel and message change through to an LsmStore
+ * Keys: "c:<group>\0<name>" holds the ID, owner, message count, last sequence and next message key of a channel
+ *       "m:<group>\0<name>\0<key>" holds one message, with key in hex so messages scan in the order they were added
+ *       "meta:nextchannel" holds the next channel ID so IDs of deleted channels aren't reused
+ * Since the store always has every change, loaded channels are evicted from heap once more than
+ * cacheMessages messages are loaded. Heap use is then bounded by that budget and the block cache
+ * On first start an existing ChannelList.bin is imported
+ */
+
+public class LsmMetadataStore implements MetadataStore {
+
+    private static final String IMPORTED = "meta:imported";
+    private static final String NEXT_CHANNEL = "meta:nextchannel";
+
+    private LsmStore lsm;
+    private String legacyPath;
+    private int cacheMessages;
+    private Hashtable<Channel, Record> records;
+    private LinkedHashMap<Channel, Boolean> loaded; // Access order, eldest is least recently used
+    private Thread janitor;
+    private volatile boolean closed = false;
+
+    public LsmMetadataStore(File dir, String _legacyPath, int _cacheMessages, long tableBytes, int compactAt, long cacheBytes) throws IOException {
+        lsm = new LsmStore(dir, tableBytes, compactAt, cacheBytes);
+        legacyPath = _legacyPath;
+        cacheMessages = _cacheMessages;
+        records = new Hashtable<Channel, Record>();
+        loaded = new LinkedHashMap<Channel, Boolean>(16, 0.75f, true);
+    }
+
+    public ChannelList load() throws IOException {
+        if (lsm.get(IMPORTED) == null) importLegacy();
+        records.clear();
+        loaded.clear();
+
+        ChannelList channelList = new ChannelList();
+        for (Map.Entry<String, byte[]> e: lsm.scan("c:").entrySet()) {
+            String[] id = e.getKey().substring(2).split("\0", 2);
+            Record r = decodeRecord(e.getValue());
+            Channel channel = new Channel(r.id, r.owner, id[0], id[1], this, r.count, r.lastSequence);
+            records.put(channel, r);
+            channelList.addChannel(channel);
+        }
+        byte[] nextId = lsm.get(NEXT_CHANNEL);
+        if (nextId != null) channelList.setNextId(new DataInputStream(new ByteArrayInputStream(nextId)).readLong());
+        channelList.attach(this);
+        for (Map.Entry<Channel, Record> e: records.entrySet()) {
+            if (e.getValue().id == 0) {
+                e.getValue().id = e.getKey().getId();
+                writeRecord(e.getKey(), e.getValue());
+            }
+        }
+
+        janitor = new Thread(new Janitor());
+        janitor.setDaemon(true);
+        janitor.start();
+        return channelList;
+    }
+
+    private void importLegacy() throws IOException {
+        if (new File(legacyPath).exists()) {
+            SnapshotMetadataStore legacy = new SnapshotMetadataStore(legacyPath);
+            ChannelList old = legacy.load();
+            for (Channel c: old.copyChannels()) {
+                Channel channel = new Channel(c.getOwner(), c.getGroup(), c.getName());
+                channel.setId(c.getId());
+                addChannel(channel);
+                for (Message m: c.getMessages()) {
+                    putMessage(channel, m);
+                }
+            }
+            legacy.close();
+            System.out.printf("Imported %s into the metadata store\n", legacyPath);
+        }
+        lsm.put(IMPORTED, new byte[] {1});
+    }
+
+    /*
+     * Called with the channel's lock held, so only the bookkeeping needs the store lock
+     * The scan itself runs without it and doesn't hold up other channels
+     */
+    public ArrayList<Message> loadMessages(Channel channel) throws IOException {
+        ArrayList<Message> messages = readMessages(channel);
+        synchronized (this) {
+            loaded.put(channel, Boolean.TRUE);
+            notifyAll();
+        }
+        return messages;
+    }
+
+    public ArrayList<Message> readMessages(Channel channel) throws IOException {
+        String prefix = messagePrefix(channel);
+        ArrayList<Message> messages = new ArrayList<Message>();
+        for (Map.Entry<String, byte[]> e: lsm.scan(prefix).entrySet()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(e.getValue()));
+            Message m = ChannelSnapshot.readMessage(in, channel.getGroup(), channel.getName(), 2);
+            if (in.available() > 0) { // Written before messages had sequence numbers otherwise
+                m.setSeq(in.readLong());
+                m.setTimestamp(in.readLong());
+            }
+            if (in.available() > 0) m.setFormat(in.readInt()); // Written before messages had formats otherwise
+            m.setStoreKey(Long.parseLong(e.getKey().substring(prefix.length()), 16));
+            messages.add(m);
+        }
+        return messages;
+    }
+
+    public synchronized void addChannel(Channel channel) {
+        Record r = new Record();
+        r.id = channel.getId();
+        r.owner = channel.getOwner();
+        records.put(channel, r);
+        loaded.put(channel, Boolean.TRUE);
+        writeRecord(channel, r);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(r.id + 1);
+            lsm.put(NEXT_CHANNEL, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void removeChannel(Channel channel) {
+        try {
+            for (String key: lsm.scan(messagePrefix(channel)).keySet()) {
+                lsm.delete(key);
+            }
+            lsm.delete(channelKey(channel));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            records.remove(channel);
+            loaded.remove(channel);
+        }
+    }
+
+    public void putMessage(Channel channel, Message message) {
+        long key = message.getStoreKey();
+        if (key == 0) {
+            synchronized (this) {
+                Record r = records.get(channel);
+                key = r.nextKey++;
+                r.count++;
+                r.lastSequence = Math.max(r.lastSequence, message.getSeq());
+                writeRecord(channel, r);
+            }
+            message.setStoreKey(key);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ChannelSnapshot.writeMessage(new DataOutputStream(bytes), message);
+            lsm.put(messageKey(channel, key), bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void removeMessage(Channel channel, Message message) {
+        try {
+            lsm.delete(messageKey(channel, message.getStoreKey()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            Record r = records.get(channel);
+            r.count--;
+            writeRecord(channel, r);
+        }
+    }
+
+    public synchronized void touch(Channel channel) {
+        loaded.get(channel);
+    }
+
+    public void sync() throws IOException {
+        lsm.sync();
+    }
+
+    // Everything is written through already, this just forces the log to disk
+    public void checkpoint(ChannelList channelList) throws IOException {
+        lsm.sync();
+    }
+
+    public void close() {
+        closed = true;
+        if (janitor != null) janitor.interrupt();
+        try {
+            lsm.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private void writeRecord(Channel channel, Record r) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(r.owner);
+            out.writeInt(r.count);
+            out.writeLong(r.nextKey);
+            out.writeLong(r.id);
+            out.writeLong(r.lastSequence);
+            lsm.put(channelKey(channel), bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Record decodeRecord(byte[] value) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        Record r = new Record();
+        r.owner = in.readUTF();
+        r.count = in.readInt();
+        r.nextKey = in.readLong();
+        if (in.available() > 0) { // Records written before channels had IDs get one from ChannelList
+            r.id = in.readLong();
+            r.lastSequence = in.readLong();
+        } else {
+            r.lastSequence = r.count;
+        }
+        return r;
+    }
+
+    private static String channelKey(Channel channel) {
+        return "c:" + channel.getGroup() + "\0" + channel.getName();
+    }
+
+    private static String messagePrefix(Channel channel) {
+        return "m:" + channel.getGroup() + "\0" + channel.getName() + "\0";
+    }
+
+    private static String messageKey(Channel channel, long key) {
+        return messagePrefix(channel) + String.format("%016x", key);
+    }
+
+    private static class Record {
+        private long id;
+        private String owner;
+        private int count = 0;
+        private long lastSequence = 0;
+        private long nextKey = 1; // 0 means a message hasn't been given a key
+    }
+
+    /*
+     * Evicts least recently used channels while more than cacheMessages messages are loaded
+     * Channel locks are taken without holding the store lock, since channels call into the
+     * store with their own lock held
+     */
+    private class Janitor implements Runnable {
+        public void run() {
+            while (!closed) {
+                ArrayList<Channel> order;
+                synchronized (LsmMetadataStore.this) {
+                    try {
+                        LsmMetadataStore.this.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    order = new ArrayList<Channel>(loaded.keySet());
+                }
+                long total = 0;
+                for (Channel c: order) {
+                    total += c.getMessageCount();
+                }
+                for (int i = 0; i < order.size() - 1 && total > cacheMessages; i++) {
+                    Channel c = order.get(i);
+                    synchronized (c) {
+                        total -= c.getMessageCount();
+                        c.evict();
+                        synchronized (LsmMetadataStore.this) {
+                            loaded.remove(c);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
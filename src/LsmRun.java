@@ -0,0 +1,260 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * One immutable sorted run of an LsmStore, stored as run-<first seq>-<last seq>.sst
+ * Layout: data blocks, block index, long index offset, int magic
+ * Each block holds sorted entries of UTF key, int value length (-1 for a deleted key) and value bytes
+ * The index holds the first key, offset and length of every block and is the only part kept in heap
+ */
+
+class LsmRun {
+
+    private static final int MAGIC = 0x4C534D52; // "LSMR"
+    private static final int BLOCK_BYTES = 4096;
+
+    private File file;
+    private long minSeq;
+    private long maxSeq;
+    private RandomAccessFile raf;
+    private LsmStore.BlockCache cache;
+    private ArrayList<String> firstKeys;
+    private ArrayList<Long> offsets;
+    private ArrayList<Integer> lengths;
+
+    private LsmRun(File _file, long _minSeq, long _maxSeq, LsmStore.BlockCache _cache) {
+        file = _file;
+        minSeq = _minSeq;
+        maxSeq = _maxSeq;
+        cache = _cache;
+        firstKeys = new ArrayList<String>();
+        offsets = new ArrayList<Long>();
+        lengths = new ArrayList<Integer>();
+    }
+
+    public static LsmRun open(File file, long minSeq, long maxSeq, LsmStore.BlockCache cache) throws IOException {
+        LsmRun run = new LsmRun(file, minSeq, maxSeq, cache);
+        run.raf = new RandomAccessFile(file, "r");
+        long length = run.raf.length();
+        run.raf.seek(length - 12);
+        long indexOffset = run.raf.readLong();
+        if (run.raf.readInt() != MAGIC) {
+            run.raf.close();
+            throw new IOException("Bad sorted run " + file.getName());
+        }
+        byte[] index = new byte[(int)(length - 12 - indexOffset)];
+        run.raf.seek(indexOffset);
+        run.raf.readFully(index);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            run.firstKeys.add(in.readUTF());
+            run.offsets.add(in.readLong());
+            run.lengths.add(in.readInt());
+        }
+        return run;
+    }
+
+    /*
+     * Writes sorted entries to a new run through a temporary file
+     * Deleted keys are written as well unless dropDeleted is set, which is only safe when nothing older remains
+     */
+    public static void write(File file, Iterator<Map.Entry<String, byte[]>> entries, boolean dropDeleted) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        int blocks = 0;
+        try {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream blockOut = new DataOutputStream(block);
+            String firstKey = null;
+            long offset = 0;
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> e = entries.next();
+                boolean deleted = e.getValue() == LsmStore.TOMBSTONE;
+                if (deleted && dropDeleted) continue;
+                if (firstKey == null) firstKey = e.getKey();
+                blockOut.writeUTF(e.getKey());
+                if (deleted) {
+                    blockOut.writeInt(-1);
+                } else {
+                    blockOut.writeInt(e.getValue().length);
+                    blockOut.write(e.getValue());
+                }
+                if (block.size() >= BLOCK_BYTES) {
+                    offset = writeBlock(out, indexOut, block, firstKey, offset);
+                    blocks++;
+                    firstKey = null;
+                }
+            }
+            if (block.size() > 0) {
+                offset = writeBlock(out, indexOut, block, firstKey, offset);
+                blocks++;
+            }
+            out.writeInt(blocks);
+            index.writeTo(out);
+            out.writeLong(offset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long writeBlock(DataOutputStream out, DataOutputStream indexOut, ByteArrayOutputStream block, String firstKey, long offset) throws IOException {
+        indexOut.writeUTF(firstKey);
+        indexOut.writeLong(offset);
+        indexOut.writeInt(block.size());
+        block.writeTo(out);
+        long next = offset + block.size();
+        block.reset();
+        return next;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getMinSeq() {
+        return minSeq;
+    }
+
+    public long getMaxSeq() {
+        return maxSeq;
+    }
+
+    // Value for key, LsmStore.TOMBSTONE if it was deleted, or null if this run doesn't have it
+    public byte[] get(String key) throws IOException {
+        int i = floorBlock(key);
+        if (i < 0) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(cachedBlock(i)));
+        while (in.available() > 0) {
+            String k = in.readUTF();
+            byte[] v = readValue(in);
+            int cmp = k.compareTo(key);
+            if (cmp == 0) return v;
+            if (cmp > 0) break;
+        }
+        return null;
+    }
+
+    // Puts every entry whose key starts with prefix into results, replacing what is there
+    public void scan(String prefix, TreeMap<String, byte[]> results) throws IOException {
+        int i = Math.max(floorBlock(prefix), 0);
+        for (; i < firstKeys.size(); i++) {
+            if (firstKeys.get(i).compareTo(prefix) > 0 && !firstKeys.get(i).startsWith(prefix)) return;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(cachedBlock(i)));
+            while (in.available() > 0) {
+                String k = in.readUTF();
+                byte[] v = readValue(in);
+                if (k.startsWith(prefix)) {
+                    results.put(k, v);
+                } else if (k.compareTo(prefix) > 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Reads every entry in order without going through the block cache. Used for compaction
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public synchronized void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        cache.removeRun(file.getName());
+    }
+
+    // Index of the last block whose first key is at most key, or -1
+    private int floorBlock(String key) {
+        int lo = 0, hi = firstKeys.size() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstKeys.get(mid).compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private byte[] cachedBlock(int i) throws IOException {
+        String cacheKey = file.getName() + ":" + i;
+        byte[] block = cache.get(cacheKey);
+        if (block == null) {
+            block = readBlock(i);
+            cache.put(cacheKey, block);
+        }
+        return block;
+    }
+
+    private synchronized byte[] readBlock(int i) throws IOException {
+        byte[] block = new byte[lengths.get(i)];
+        raf.seek(offsets.get(i));
+        raf.readFully(block);
+        return block;
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return LsmStore.TOMBSTONE;
+        byte[] v = new byte[length];
+        in.readFully(v);
+        return v;
+    }
+
+    class Cursor {
+        private int block = 0;
+        private DataInputStream in = null;
+        private String key;
+        private byte[] value;
+
+        // Moves to the next entry. Returns false at the end of the run
+        public boolean next() throws IOException {
+            while (in == null || in.available() == 0) {
+                if (block >= firstKeys.size()) return false;
+                in = new DataInputStream(new ByteArrayInputStream(readBlock(block++)));
+            }
+            try {
+                key = in.readUTF();
+                value = readValue(in);
+            } catch (EOFException e) {
+                throw new IOException("Truncated block in " + file.getName());
+            }
+            return true;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+}
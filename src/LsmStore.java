@@ -0,0 +1,446 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Small log-structured merge tree mapping String keys to byte[] values, kept in one directory
+ * Writes are appended to a log (wal-<seq>.log) and go into a sorted in-memory table
+ * A full table is frozen and a background thread writes it out as an immutable sorted run (see LsmRun)
+ * Once enough runs pile up the same thread merges them all into one and drops deleted keys
+ * Reads check the live table, the frozen tables and then the runs from newest to oldest
+ * Run blocks are read through one LRU cache with a byte budget, so only the run indexes stay in heap
+ */
+
+public class LsmStore {
+
+    static final byte[] TOMBSTONE = new byte[0]; // Compared by identity, marks a deleted key
+
+    private File dir;
+    private long tableLimit; // Bytes buffered in the live table before it is frozen
+    private int compactAt; // Number of runs that triggers a full compaction
+    private TreeMap<String, byte[]> table;
+    private long tableBytes;
+    private long tableSeq;
+    private FileOutputStream walFile;
+    private DataOutputStream wal;
+    private ArrayList<Frozen> frozen; // Oldest first
+    private ArrayList<LsmRun> runs; // Oldest first
+    private long nextSeq;
+    private BlockCache cache;
+    private ReentrantReadWriteLock runLock; // Readers hold it while using runs, compaction takes it to close them
+    private Thread worker;
+    private boolean closed = false;
+
+    public LsmStore(File _dir, long _tableLimit, int _compactAt, long cacheBytes) throws IOException {
+        dir = _dir;
+        tableLimit = _tableLimit;
+        compactAt = _compactAt;
+        table = new TreeMap<String, byte[]>();
+        frozen = new ArrayList<Frozen>();
+        runs = new ArrayList<LsmRun>();
+        cache = new BlockCache(cacheBytes);
+        runLock = new ReentrantReadWriteLock();
+        open();
+        worker = new Thread(new Worker());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /*
+     * Opens the runs and replays any logs that were not written out yet
+     * A crash during compaction can leave the merged run next to its inputs, so runs whose
+     * sequence range lies inside another run's range are leftovers and are deleted
+     */
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        TreeMap<Long, File> logs = new TreeMap<Long, File>();
+        for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                f.delete();
+            } else if (name.startsWith("run-") && name.endsWith(".sst")) {
+                String[] parts = name.substring(4, name.length() - 4).split("-");
+                ranges.add(new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+            } else if (name.startsWith("wal-") && name.endsWith(".log")) {
+                logs.put(Long.parseLong(name.substring(4, name.length() - 4)), f);
+            }
+        }
+        Collections.sort(ranges, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]));
+        long lastSeq = 0;
+        for (long[] r : ranges) {
+            File f = runFile(r[0], r[1]);
+            if (r[1] <= lastSeq) {
+                f.delete();
+                continue;
+            }
+            runs.add(LsmRun.open(f, r[0], r[1], cache));
+            lastSeq = r[1];
+        }
+        for (Map.Entry<Long, File> log : logs.entrySet()) {
+            if (log.getKey() <= lastSeq) {
+                log.getValue().delete();
+                continue;
+            }
+            TreeMap<String, byte[]> replayed = replay(log.getValue());
+            frozen.add(new Frozen(replayed, log.getKey()));
+            lastSeq = log.getKey();
+        }
+        nextSeq = lastSeq + 1;
+        openTable();
+    }
+
+    private TreeMap<String, byte[]> replay(File log) throws IOException {
+        TreeMap<String, byte[]> replayed = new TreeMap<String, byte[]>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+        try {
+            while (true) {
+                String key = in.readUTF();
+                int length = in.readInt();
+                byte[] value = TOMBSTONE;
+                if (length >= 0) {
+                    value = new byte[length];
+                    in.readFully(value);
+                }
+                replayed.put(key, value);
+            }
+        } catch (EOFException e) {
+            // End of the log, or a record torn by a crash
+        } finally {
+            in.close();
+        }
+        return replayed;
+    }
+
+    private void openTable() throws IOException {
+        tableSeq = nextSeq++;
+        table = new TreeMap<String, byte[]>();
+        tableBytes = 0;
+        walFile = new FileOutputStream(walFile(tableSeq), true);
+        wal = new DataOutputStream(new BufferedOutputStream(walFile));
+    }
+
+    private File runFile(long minSeq, long maxSeq) {
+        return new File(dir, "run-" + minSeq + "-" + maxSeq + ".sst");
+    }
+
+    private File walFile(long seq) {
+        return new File(dir, "wal-" + seq + ".log");
+    }
+
+    public byte[] get(String key) throws IOException {
+        runLock.readLock().lock();
+        try {
+            ArrayList<LsmRun> current;
+            synchronized (this) {
+                byte[] v = table.get(key);
+                for (int i = frozen.size() - 1; v == null && i >= 0; i--) {
+                    v = frozen.get(i).table.get(key);
+                }
+                if (v != null) return v == TOMBSTONE ? null : v;
+                current = new ArrayList<LsmRun>(runs);
+            }
+            for (int i = current.size() - 1; i >= 0; i--) {
+                byte[] v = current.get(i).get(key);
+                if (v != null) return v == TOMBSTONE ? null : v;
+            }
+            return null;
+        } finally {
+            runLock.readLock().unlock();
+        }
+    }
+
+    // All live entries whose key starts with prefix, in key order
+    public TreeMap<String, byte[]> scan(String prefix) throws IOException {
+        TreeMap<String, byte[]> results = new TreeMap<String, byte[]>();
+        runLock.readLock().lock();
+        try {
+            ArrayList<LsmRun> current;
+            ArrayList<SortedMap<String, byte[]>> tables = new ArrayList<SortedMap<String, byte[]>>();
+            synchronized (this) {
+                current = new ArrayList<LsmRun>(runs);
+                for (Frozen f : frozen) {
+                    tables.add(f.table.subMap(prefix, prefix + Character.MAX_VALUE));
+                }
+                tables.add(new TreeMap<String, byte[]>(table.subMap(prefix, prefix + Character.MAX_VALUE)));
+            }
+            for (LsmRun run : current) {
+                run.scan(prefix, results);
+            }
+            for (SortedMap<String, byte[]> t : tables) {
+                results.putAll(t);
+            }
+        } finally {
+            runLock.readLock().unlock();
+        }
+        results.values().removeIf(v -> v == TOMBSTONE);
+        return results;
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        write(key, value);
+    }
+
+    public void delete(String key) throws IOException {
+        write(key, TOMBSTONE);
+    }
+
+    // The log is flushed to the OS on every write, so only a machine crash can lose the tail
+    private synchronized void write(String key, byte[] value) throws IOException {
+        if (closed) throw new IOException("Store is closed");
+        wal.writeUTF(key);
+        if (value == TOMBSTONE) {
+            wal.writeInt(-1);
+        } else {
+            wal.writeInt(value.length);
+            wal.write(value);
+        }
+        wal.flush();
+        table.put(key, value);
+        tableBytes += 2 * key.length() + value.length + 32;
+        if (tableBytes >= tableLimit) freeze();
+    }
+
+    // Forces the current log to disk
+    public synchronized void sync() throws IOException {
+        if (closed) return;
+        wal.flush();
+        walFile.getFD().sync();
+    }
+
+    private void freeze() throws IOException {
+        wal.flush();
+        walFile.getFD().sync();
+        wal.close();
+        frozen.add(new Frozen(table, tableSeq));
+        openTable();
+        notifyAll();
+    }
+
+    /*
+     * Stops the background thread and closes the log and runs
+     * Tables that were not written out yet stay in their logs and are replayed next time
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            wal.flush();
+            walFile.getFD().sync();
+            wal.close();
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        runLock.writeLock().lock();
+        try {
+            for (LsmRun run : runs) {
+                run.close();
+            }
+        } finally {
+            runLock.writeLock().unlock();
+        }
+    }
+
+    public synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    public long getCacheHits() {
+        return cache.hits;
+    }
+
+    public long getCacheMisses() {
+        return cache.misses;
+    }
+
+    private void flush(Frozen f) throws IOException {
+        File file = runFile(f.seq, f.seq);
+        LsmRun.write(file, f.table.entrySet().iterator(), false);
+        LsmRun run = LsmRun.open(file, f.seq, f.seq, cache);
+        synchronized (this) {
+            runs.add(run);
+            frozen.remove(f);
+        }
+        walFile(f.seq).delete();
+    }
+
+    // Merges every run into one. Only this thread removes runs, so the inputs can be read without locks
+    private void compact() throws IOException {
+        ArrayList<LsmRun> inputs;
+        synchronized (this) {
+            inputs = new ArrayList<LsmRun>(runs);
+        }
+        long minSeq = inputs.get(0).getMinSeq();
+        long maxSeq = inputs.get(inputs.size() - 1).getMaxSeq();
+        File file = runFile(minSeq, maxSeq);
+        LsmRun.write(file, new MergeIterator(inputs), true);
+        LsmRun merged = LsmRun.open(file, minSeq, maxSeq, cache);
+        runLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                runs.removeAll(inputs);
+                runs.add(0, merged);
+            }
+            for (LsmRun run : inputs) {
+                run.close();
+                run.getFile().delete();
+            }
+        } finally {
+            runLock.writeLock().unlock();
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (true) {
+                Frozen next = null;
+                synchronized (LsmStore.this) {
+                    while (!closed && frozen.isEmpty() && runs.size() < compactAt) {
+                        try {
+                            LsmStore.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) return;
+                    if (!frozen.isEmpty()) next = frozen.get(0);
+                }
+                try {
+                    if (next != null) {
+                        flush(next);
+                    } else {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing to store " + dir + ": " + e.getMessage());
+                    e.printStackTrace(System.err);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Frozen {
+        private TreeMap<String, byte[]> table;
+        private long seq;
+
+        public Frozen(TreeMap<String, byte[]> _table, long _seq) {
+            table = _table;
+            seq = _seq;
+        }
+    }
+
+    // K-way merge over runs in key order. When several runs hold a key the newest run wins
+    private static class MergeIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private PriorityQueue<Object[]> heads; // {cursor, run position}
+        private Map.Entry<String, byte[]> pending;
+
+        public MergeIterator(ArrayList<LsmRun> inputs) throws IOException {
+            heads = new PriorityQueue<Object[]>((a, b) -> {
+                int cmp = ((LsmRun.Cursor)a[0]).getKey().compareTo(((LsmRun.Cursor)b[0]).getKey());
+                return cmp != 0 ? cmp : Integer.compare((Integer)b[1], (Integer)a[1]);
+            });
+            for (int i = 0; i < inputs.size(); i++) {
+                LsmRun.Cursor c = inputs.get(i).cursor();
+                if (c.next()) heads.add(new Object[] {c, i});
+            }
+        }
+
+        public boolean hasNext() {
+            if (pending == null && !heads.isEmpty()) {
+                try {
+                    Object[] top = heads.poll();
+                    LsmRun.Cursor c = (LsmRun.Cursor)top[0];
+                    pending = new java.util.AbstractMap.SimpleEntry<String, byte[]>(c.getKey(), c.getValue());
+                    if (c.next()) heads.add(top);
+                    while (!heads.isEmpty() && ((LsmRun.Cursor)heads.peek()[0]).getKey().equals(pending.getKey())) {
+                        Object[] older = heads.poll();
+                        if (((LsmRun.Cursor)older[0]).next()) heads.add(older);
+                    }
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }
+            return pending != null;
+        }
+
+        public Map.Entry<String, byte[]> next() {
+            hasNext();
+            Map.Entry<String, byte[]> e = pending;
+            pending = null;
+            return e;
+        }
+    }
+
+    /*
+     * LRU cache of run blocks bounded by total bytes
+     * Keys are "<run file>:<block>" so a closed run's blocks can be dropped by name
+     */
+    static class BlockCache {
+        private long budget;
+        private long used = 0;
+        private LinkedHashMap<String, byte[]> blocks;
+        private volatile long hits = 0;
+        private volatile long misses = 0;
+
+        public BlockCache(long _budget) {
+            budget = _budget;
+            blocks = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        }
+
+        public synchronized byte[] get(String key) {
+            byte[] block = blocks.get(key);
+            if (block == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return block;
+        }
+
+        public synchronized void put(String key, byte[] block) {
+            byte[] old = blocks.put(key, block);
+            if (old != null) used -= old.length;
+            used += block.length;
+            Iterator<byte[]> it = blocks.values().iterator();
+            while (used > budget && it.hasNext()) {
+                used -= it.next().length;
+                it.remove();
+            }
+        }
+
+        public synchronized void removeRun(String run) {
+            Iterator<Map.Entry<String, byte[]>> it = blocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, byte[]> e = it.next();
+                if (e.getKey().startsWith(run + ":")) {
+                    used -= e.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -3,12 +3,16 @@
  * Keeps track of group, channel, and owner (sender)
  * Also keeps track of name of file where text is stored
  * Text files are stored in messages directory
- * None of these attributes should ever change
+ * Addressed by channel ID and sequence number, which Channel assigns along with a server timestamp when the message is added
+ * Only the key index, IV and length change afterwards, when the text is replaced, and the path when an archived channel is restored
  */
 
 class Message implements java.io.Serializable, Comparable<Message> {
     
     private static final long serialVersionUID = 1L;
+    public static final int FORMAT_CBC = 0; // One AES/CBC ciphertext, only readable as a whole
+    public static final int FORMAT_SEGMENTED = 1; // SegmentedCipher, any range can be read on its own
+    public static final int FORMAT_DEFLATED = 2; // Like FORMAT_CBC, of the text deflated first
     private String group;
     private String channel;
     private String owner;
@@ -16,6 +20,11 @@ class Message implements java.io.Serializable, Comparable<Message> {
     private int keyIndex;
     private byte[] iv;
     private int length;
+    private long channelId;
+    private long seq; // 0 until the message is added to a channel
+    private long timestamp; // Server time the message was added, in milliseconds
+    private int format; // How the text is encrypted, one of the FORMAT_ constants
+    private transient long storeKey; // Position of the message in an LsmMetadataStore, 0 if not assigned yet
 
     public Message(String _owner, String _group, String _channel, String _path, int _keyIndex, byte[] _iv, int _length) {
         group = _group;
@@ -67,9 +76,52 @@ class Message implements java.io.Serializable, Comparable<Message> {
         length = _length;
     }
 
+    public synchronized void setPath(String _path) {
+        path = _path;
+    }
+
+    public synchronized int getFormat() {
+        return format;
+    }
+
+    public synchronized void setFormat(int _format) {
+        format = _format;
+    }
+
+    public synchronized long getChannelId() {
+        return channelId;
+    }
+
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    public synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+    public synchronized void setChannelId(long _channelId) {
+        channelId = _channelId;
+    }
+
+    public synchronized void setSeq(long _seq) {
+        seq = _seq;
+    }
+
+    public synchronized void setTimestamp(long _timestamp) {
+        timestamp = _timestamp;
+    }
+
+    public synchronized long getStoreKey() {
+        return storeKey;
+    }
+
+    public synchronized void setStoreKey(long _storeKey) {
+        storeKey = _storeKey;
+    }
+
+	// Order within a channel is the order messages were sent
 	public int compareTo(Message rhs) {
-		if (path.compareTo(rhs.getPath())==0)return 0;
-		else if (path.compareTo(rhs.getPath())<0) return -1;
-		else return 1;
+		return Long.compare(seq, rhs.getSeq());
 	}
 }
\ No newline at end of file
@@ -1,24 +1,62 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
 /*
  * Used specifically for the readMessages method
  * Just keeps message and text pairs so they can be stored kind of as tuples in an ArrayList
+ * On the host server the text can be a ByteBuffer shared with MessageServer.textCache,
+ * which is serialized straight from its array without first copying it
  */
 
 public class MessageAndText implements java.io.Serializable {
 
-    private static final long serialVersionUID = 4L;
+    private static final long serialVersionUID = 5L;
     private Message message;
-    private byte[] text;
+    private transient byte[] text;
+    private transient ByteBuffer body; // Text not copied out yet, only set on the host server
 
     public MessageAndText(Message _message, byte[] _text) {
         message = _message;
         text = _text;
     }
 
+    public MessageAndText(Message _message, ByteBuffer _body) {
+        message = _message;
+        body = _body;
+    }
+
     public Message getMessage() {
         return message;
     }
 
-    public byte[] getText() {
+    public synchronized byte[] getText() {
+        if (text == null && body != null) {
+            text = new byte[body.remaining()];
+            body.duplicate().get(text);
+        }
         return text;
     }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (text != null || body == null) {
+            out.writeInt(text == null ? -1 : text.length);
+            if (text != null) out.write(text);
+            return;
+        }
+        ByteBuffer b = body.duplicate();
+        out.writeInt(b.remaining());
+        out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int length = in.readInt();
+        if (length >= 0) {
+            text = new byte[length];
+            in.readFully(text);
+        }
+    }
 }
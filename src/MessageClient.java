@@ -1,19 +1,49 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.nio.ByteBuffer;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
 /*
  * User client for sending messaging-related network requests to host server
+ * Session payloads are deflated when the server has the same Compression dictionary,
+ * and message texts too if setCompressText was called
  */
 
 public class MessageClient extends Client {
 
+	private static final int TRANSFER_ATTEMPTS = 3; // Passes over an upload, or tries at one chunk of a download
+
 	private CryptoSuite suite = null; // Crypto suite from the client app
 	private SecretKey sk = null; // Session key
 	private Envelope ht = null; // Host token
+	private String sessionId = null; // Lets the server find our session key without decrypting the host token
+	private boolean deflate = false; // Server has our session dictionary, so requests and responses are deflated
+	private boolean compressText = false; // Deflate message texts before encrypting them
+	private PushListener pushListener = null;
+	private LinkedBlockingQueue<Envelope> responses = null; // Filled by the reader thread once we subscribe
+	private static final Envelope DISCONNECTED = new Envelope("ERROR-DISCONNECTED"); // Last thing the reader thread queues
 
     public boolean getSessionKey(PublicKey pub, PrivateKey priv, IntermediaryInterface inter, CryptoSuite _suite) {
         suite = _suite;
@@ -32,6 +62,12 @@ public class MessageClient extends Client {
                     byte[] encSk = (byte[]) resp.getObjContents().get(1);
                     sk = suite.decryptKeyRSA(encSk, priv);
                     ht = (Envelope) resp.getObjContents().get(2);
+                    if (resp.getObjContents().size() > 3) {
+                        sessionId = (String) resp.getObjContents().get(3);
+                    }
+                    if (resp.getObjContents().size() > 4) { // Servers that can deflate send the ID of their dictionary
+                        deflate = Integer.valueOf(Compression.SESSION_DICTIONARY_ID).equals(resp.getObjContents().get(4));
+                    }
                     return true;
                 } else {
                     System.out.println("Failed to authenticate the host server due to fingerprint.");
@@ -45,7 +81,15 @@ public class MessageClient extends Client {
         return false;
     }
 
-    public Channel createChannel(String group, String name, UserToken token) {
+    /*
+     * Deflates message texts sent from now on before they are encrypted, so longer texts fit and take less bandwidth
+     * The length of the ciphertext then also says how compressible the text is
+     */
+    public void setCompressText(boolean _compressText) {
+        compressText = _compressText;
+    }
+
+    public ChannelSummary createChannel(String group, String name, UserToken token) {
         Envelope env = new Envelope("CREATECHANNEL");
         env.addObject(group);
         env.addObject(name);
@@ -53,7 +97,7 @@ public class MessageClient extends Client {
             if(!sendEncrypted(env, token)) return null;
             env = receiveEncrypted();
             if (env.getMessage().compareTo("OK") == 0) {
-                return (Channel) env.getObjContents().get(0);
+                return (ChannelSummary) env.getObjContents().get(0);
 			} else {
 				System.out.printf("Error creating channel: %s\n", env.getMessage());
                 return null;
@@ -64,9 +108,9 @@ public class MessageClient extends Client {
         return null;
     }
 
-    public boolean deleteChannel(Channel channel, UserToken token) {
+    public boolean deleteChannel(ChannelSummary channel, UserToken token) {
         Envelope env = new Envelope("DELETECHANNEL");
-        env.addObject(channel);
+        env.addObject(channel.getId());
         try {
             if(!sendEncrypted(env, token)) return false;
             env = receiveEncrypted();
@@ -82,7 +126,28 @@ public class MessageClient extends Client {
         return false;
     }
 
-    public Message sendMessage(Channel channel, String text, UserToken token, GroupKeyMap keyMap) {
+    // Sets the channel's own retention limits, or removes them if policy is null
+    // Returns the limits the server applies, including its group's, or null on failure
+    public RetentionPolicy setRetention(ChannelSummary channel, RetentionPolicy policy, UserToken token) {
+        Envelope env = new Envelope("SETRETENTION");
+        env.addObject(channel.getId());
+        env.addObject(policy);
+        try {
+            if(!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env.getMessage().compareTo("OK") == 0) {
+                return (RetentionPolicy)env.getObjContents().get(0);
+			} else {
+				System.out.printf("Error setting retention: %s\n", env.getMessage());
+                return null;
+			}
+        } catch (Exception e) {
+			e.printStackTrace();
+		}
+        return null;
+    }
+
+    public Message sendMessage(ChannelSummary channel, String text, UserToken token, GroupKeyMap keyMap) {
         try {
             String groupname = channel.getGroup();
             ArrayList<SecretKey> groupKeys = keyMap.getGroupKeys(groupname);
@@ -92,13 +157,15 @@ public class MessageClient extends Client {
             System.out.printf("Using group key version %s\n", keyIndex);
 
             byte[] iv = suite.generateAesIv();
-            byte[] tBytes = suite.encryptMessageAES(text, gk, iv);
+            byte[] deflated = compressText ? Compression.deflate(text.getBytes(), null) : null;
+            byte[] tBytes = deflated != null ? suite.encryptTextAES(deflated, gk, iv) : suite.encryptMessageAES(text, gk, iv);
 
             Envelope env = new Envelope("SENDMESSAGE");
-            env.addObject(channel);
+            env.addObject(channel.getId());
             env.addObject(tBytes);
             env.addObject(keyIndex);
             env.addObject(iv);
+            if (deflated != null) env.addObject(Message.FORMAT_DEFLATED);
             if(!sendEncrypted(env, token)) return null;
             env = receiveEncrypted();
             if (env.getMessage().compareTo("OK") == 0) {
@@ -115,7 +182,8 @@ public class MessageClient extends Client {
 
     public boolean deleteMessage(Message message, UserToken token) {
         Envelope env = new Envelope("DELETEMESSAGE");
-        env.addObject(message);
+        env.addObject(message.getChannelId());
+        env.addObject(message.getSeq());
         try {
             if(!sendEncrypted(env, token)) return false;
             env = receiveEncrypted();
@@ -141,13 +209,16 @@ public class MessageClient extends Client {
             System.out.printf("Using group key version %s\n", keyIndex);
 
             byte[] iv = suite.generateAesIv();
-            byte[] tBytes = suite.encryptMessageAES(text, gk, iv);
+            byte[] deflated = compressText ? Compression.deflate(text.getBytes(), null) : null;
+            byte[] tBytes = deflated != null ? suite.encryptTextAES(deflated, gk, iv) : suite.encryptMessageAES(text, gk, iv);
 
             Envelope env = new Envelope("SETMESSAGE");
-            env.addObject(message);
+            env.addObject(message.getChannelId());
+            env.addObject(message.getSeq());
             env.addObject(tBytes);
             env.addObject(keyIndex);
             env.addObject(iv);
+            if (deflated != null) env.addObject(Message.FORMAT_DEFLATED);
             if(!sendEncrypted(env, token)) return false;
             env = receiveEncrypted();
             if (env.getMessage().compareTo("OK") == 0) {
@@ -162,14 +233,99 @@ public class MessageClient extends Client {
         return false;
     }
 
+    /*
+     * Re-encrypts old messages in a channel under the latest group key, a batch at a time
+     * Only our own messages are touched. Those sent in pieces are downloaded to a temporary file and uploaded again
+     * in their place, and any that fail are reported since they keep their older key in use
+     * Returns the lowest group key index still used by the channel afterwards, or -1 on failure
+     */
+	@SuppressWarnings("unchecked")
+    public int reencryptChannel(ChannelSummary channel, UserToken token, GroupKeyMap keyMap, int batchSize) {
+        try {
+            ArrayList<SecretKey> groupKeys = keyMap.getGroupKeys(channel.getGroup());
+            if (groupKeys == null) return -1;
+            int latest = groupKeys.size() - 1;
+            SecretKey gk = groupKeys.get(latest);
+            long start = 0;
+            int updated = 0;
+            int skipped = 0;
+            while (start != -1) {
+                Envelope env = new Envelope("READSTALEMESSAGES");
+                env.addObject(channel.getId());
+                env.addObject(latest);
+                env.addObject(start);
+                env.addObject(batchSize);
+                if (!sendEncrypted(env, token)) return -1;
+                env = receiveEncrypted();
+                if (!env.getMessage().equals("OK")) {
+                    System.out.printf("Error reading stale messages: %s\n", env.getMessage());
+                    return -1;
+                }
+                ArrayList<MessageAndText> stale = (ArrayList<MessageAndText>) env.getObjContents().get(0);
+                start = (long) env.getObjContents().get(1);
+
+                ArrayList<MessageUpdate> updates = new ArrayList<MessageUpdate>();
+                for (MessageAndText mt: stale) {
+                    Message m = mt.getMessage();
+                    if (m.getKeyIndex() >= groupKeys.size()) continue;
+                    SecretKey oldKey = groupKeys.get(m.getKeyIndex());
+                    if (oldKey == null) continue; // Key already retired, nothing we can do
+                    if (mt.getText() == null) { // Uploaded in chunks, too long for SETMESSAGES
+                        if (reuploadMessage(m, token, keyMap, gk, latest)) updated++;
+                        else skipped++;
+                        continue;
+                    }
+                    byte[] text = suite.decryptTextAES(mt.getText(), oldKey, m.getIv()); // Left deflated if it was
+                    if (text == null) continue;
+                    byte[] iv = suite.generateAesIv();
+                    updates.add(new MessageUpdate(m, suite.encryptTextAES(text, gk, iv), latest, iv, m.getFormat()));
+                }
+                if (updates.size() == 0) continue;
+
+                env = new Envelope("SETMESSAGES");
+                env.addObject(updates);
+                if (!sendEncrypted(env, token)) return -1;
+                env = receiveEncrypted();
+                if (!env.getMessage().equals("OK")) {
+                    System.out.printf("Error setting messages: %s\n", env.getMessage());
+                    return -1;
+                }
+                for (String status: (ArrayList<String>) env.getObjContents().get(0)) {
+                    if (status.equals("OK")) updated++;
+                }
+            }
+            System.out.printf("Re-encrypted %d messages under group key version %d\n", updated, latest);
+            if (skipped > 0) {
+                System.out.printf("%d messages sent in pieces could not be re-encrypted and still use older keys\n", skipped);
+            }
+
+            // Ask once more for the lowest key index now that every batch has been written
+            Envelope env = new Envelope("READSTALEMESSAGES");
+            env.addObject(channel.getId());
+            env.addObject(latest);
+            env.addObject(0L);
+            env.addObject(0);
+            if (!sendEncrypted(env, token)) return -1;
+            env = receiveEncrypted();
+            if (!env.getMessage().equals("OK")) {
+                System.out.printf("Error reading stale messages: %s\n", env.getMessage());
+                return -1;
+            }
+            return (int) env.getObjContents().get(2);
+        } catch (Exception e) {
+			e.printStackTrace();
+		}
+        return -1;
+    }
+
 	@SuppressWarnings("unchecked")
-    public ArrayList<Channel> getChannels(UserToken token) {
+    public ArrayList<ChannelSummary> getChannels(UserToken token) {
         Envelope env = new Envelope("GETCHANNELS");
         try {
             if(!sendEncrypted(env, token)) return null;
             env = receiveEncrypted();
             if (env.getMessage().equals("OK")) {
-                ArrayList<Channel> channels = (ArrayList<Channel>) env.getObjContents().get(0);
+                ArrayList<ChannelSummary> channels = (ArrayList<ChannelSummary>) env.getObjContents().get(0);
 				return channels;
 			} else {
 				System.out.printf("Error getting channels: %s\n", env.getMessage());
@@ -181,10 +337,310 @@ public class MessageClient extends Client {
         return null;
     }
 
+    /*
+     * Sends the contents of a file as one message, for messages too long for sendMessage
+     * The file is encrypted with SegmentedCipher as it is read and sent in chunks, so it never has to fit in memory
+     * and readers can fetch any part of it with readRange
+     * Chunks the server didn't get are sent again, up to TRANSFER_ATTEMPTS passes
+     */
+    public Message sendFile(ChannelSummary channel, File file, UserToken token, GroupKeyMap keyMap) {
+        ArrayList<SecretKey> groupKeys = keyMap.getGroupKeys(channel.getGroup());
+        if (groupKeys == null) return null;
+        int keyIndex = groupKeys.size() - 1;
+        return upload(channel.getId(), file, groupKeys.get(keyIndex), keyIndex, 0, token);
+    }
+
+    /*
+     * Downloads one of our messages that was sent in pieces and uploads it again under group key keyIndex,
+     * replacing the text of the same message. Returns false if either transfer failed
+     */
+    private boolean reuploadMessage(Message message, UserToken token, GroupKeyMap keyMap, SecretKey gk, int keyIndex) {
+        File temp = null;
+        try {
+            temp = File.createTempFile("reencrypt", ".tmp");
+            if (!saveFile(message, temp, token, keyMap)) return false;
+            return upload(message.getChannelId(), temp, gk, keyIndex, message.getSeq(), token) != null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (temp != null) {
+                temp.delete();
+                new File(temp.getPath() + ".part").delete(); // Left by a download that stopped partway
+            }
+        }
+    }
+
+    // Uploads file as a FORMAT_SEGMENTED message, or as the new text of message replaces if it isn't 0
+    private Message upload(long channelId, File file, SecretKey gk, int keyIndex, long replaces, UserToken token) {
+        try {
+            byte[] iv = suite.generateAesIv();
+            long length = SegmentedCipher.encryptedLength(file.length());
+
+            Envelope env = new Envelope("BEGINUPLOAD");
+            env.addObject(channelId);
+            env.addObject(length);
+            env.addObject(keyIndex);
+            env.addObject(iv);
+            env.addObject(Message.FORMAT_SEGMENTED);
+            if (replaces != 0) env.addObject(replaces);
+            if (!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (!env.getMessage().equals("OK")) {
+                System.out.printf("Error starting upload: %s\n", env.getMessage());
+                return null;
+            }
+            String uploadId = (String) env.getObjContents().get(0);
+            int chunkSize = (int) env.getObjContents().get(1);
+
+            Set<Integer> missing = null; // Everything on the first pass
+            for (int attempt = 0; attempt < TRANSFER_ATTEMPTS; attempt++) {
+                uploadChunks(uploadId, file, gk, iv, chunkSize, missing, token);
+                env = new Envelope("UPLOADSTATUS");
+                env.addObject(uploadId);
+                if (!sendEncrypted(env, token)) return null;
+                env = receiveEncrypted();
+                if (!env.getMessage().equals("OK")) {
+                    System.out.printf("Error uploading file: %s\n", env.getMessage());
+                    return null;
+                }
+                @SuppressWarnings("unchecked")
+                ArrayList<Integer> left = (ArrayList<Integer>) env.getObjContents().get(0);
+                missing = new HashSet<Integer>(left);
+                if (missing.isEmpty()) break;
+            }
+            if (!missing.isEmpty()) {
+                System.out.printf("Error uploading file: %d chunks were not accepted\n", missing.size());
+                return null;
+            }
+
+            env = new Envelope("FINISHUPLOAD");
+            env.addObject(uploadId);
+            if (!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env.getMessage().equals("OK")) {
+                return (Message) env.getObjContents().get(0);
+            } else {
+                System.out.printf("Error sending file: %s\n", env.getMessage());
+                return null;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /*
+     * Encrypts the file from the start and sends the chunks in wanted, or every chunk if wanted is null
+     * The same key and IV always give the same ciphertext, so chunks sent again match the ones the server has
+     * Chunks are cut from the ciphertext regardless of where its segments start
+     * One chunk is sent per round trip, since the server answers each request with a challenge first
+     * and reads the next thing on the stream as the answer. Chunks the server refuses are left for the next pass
+     */
+    private void uploadChunks(String uploadId, File file, SecretKey key, byte[] iv, int chunkSize, Set<Integer> wanted, UserToken token) throws Exception {
+        InputStream in = new SegmentedCipher(key, iv).encrypting(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] chunk = new byte[chunkSize];
+            int n = chunkSize;
+            for (int index = 0; n == chunkSize; index++) {
+                n = in.readNBytes(chunk, 0, chunkSize);
+                if (n == 0) break;
+                if (wanted != null && !wanted.contains(index)) continue;
+                Envelope env = new Envelope("UPLOADCHUNK");
+                env.addObject(uploadId);
+                env.addObject(index);
+                env.addObject(Arrays.copyOf(chunk, n));
+                env.addObject(suite.hashChunk(chunk, 0, n));
+                if (!sendEncrypted(env, token)) throw new IOException("Could not send chunk " + index);
+                checkChunk(index);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkChunk(int index) throws IOException {
+        Envelope env = receiveEncrypted();
+        if (env == null) throw new IOException("No response for chunk " + index);
+        if (!env.getMessage().equals("OK")) {
+            System.out.printf("Chunk %d was not accepted: %s\n", index, env.getMessage());
+        }
+    }
+
+    /*
+     * Downloads a message and writes its decrypted text to file
+     * Returns false if the message couldn't be saved
+     */
+    public boolean saveFile(Message message, File file, UserToken token, GroupKeyMap keyMap) {
+        if (message.getFormat() == Message.FORMAT_SEGMENTED) return saveSegments(message, file, token, keyMap);
+        return saveChunks(message, file, token, keyMap);
+    }
+
+    /*
+     * Downloads a message a chunk at a time, decrypting it as one AES/CBC ciphertext
+     * Each chunk is checked against the hash sent with it and asked for again if it doesn't match
+     * A failed download is removed again, since CBC can't pick up in the middle without the chunk before
+     */
+    private boolean saveChunks(Message message, File file, UserToken token, GroupKeyMap keyMap) {
+        List<SecretKey> groupKeys = keyMap.getGroupKeys(message.getGroup());
+        if (groupKeys == null || message.getKeyIndex() >= groupKeys.size()) return false;
+        SecretKey gk = groupKeys.get(message.getKeyIndex());
+        if (gk == null) return false; // Key was retired
+        Cipher cipher = suite.messageCipher(Cipher.DECRYPT_MODE, gk, message.getIv());
+        boolean saved = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                long received = 0;
+                for (int index = 0; received < message.getLength(); index++) {
+                    byte[] chunk = readChunk(message, index, token);
+                    if (chunk == null || chunk.length == 0) return false;
+                    out.write(cipher.update(chunk));
+                    received += chunk.length;
+                }
+                out.write(cipher.doFinal());
+                saved = true;
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!saved) file.delete();
+        }
+        return saved;
+    }
+
+    /*
+     * Downloads a message a segment at a time into file.part, and renames it to file when it is complete
+     * A file.part left by a failed download is picked up from its last whole segment
+     */
+    private boolean saveSegments(Message message, File file, UserToken token, GroupKeyMap keyMap) {
+        try {
+            SegmentedCipher cipher = cipherFor(message, keyMap);
+            if (cipher == null) return false;
+            File part = new File(file.getPath() + ".part");
+            RandomAccessFile out = new RandomAccessFile(part, "rw");
+            try {
+                int first = (int)(out.length() / SegmentedCipher.SEGMENT_BYTES);
+                out.setLength((long)first * SegmentedCipher.SEGMENT_BYTES);
+                out.seek(out.length());
+                int segments = SegmentedCipher.segmentCount(message.getLength());
+                for (int i = first; i < segments; i++) {
+                    byte[] plain = readSegment(message, cipher, i, token);
+                    if (plain == null) return false; // The part file stays for next time
+                    out.write(plain);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /*
+     * Reads length bytes of the text of a message from offset on, fetching and decrypting only the segments that cover them
+     * Only works for Message.FORMAT_SEGMENTED messages. Returns fewer bytes at the end of the text, or null on failure
+     */
+    public byte[] readRange(Message message, long offset, int length, UserToken token, GroupKeyMap keyMap) {
+        if (message.getFormat() != Message.FORMAT_SEGMENTED || offset < 0 || length < 0) return null;
+        try {
+            SegmentedCipher cipher = cipherFor(message, keyMap);
+            if (cipher == null) return null;
+            long end = Math.min(SegmentedCipher.plainLength(message.getLength()), offset + length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = (int)(offset / SegmentedCipher.SEGMENT_BYTES); (long)i * SegmentedCipher.SEGMENT_BYTES < end; i++) {
+                byte[] plain = readSegment(message, cipher, i, token);
+                if (plain == null) return null;
+                long start = (long)i * SegmentedCipher.SEGMENT_BYTES;
+                int from = (int)Math.max(0, offset - start);
+                int to = (int)Math.min(plain.length, end - start);
+                out.write(plain, from, to - from);
+            }
+            return out.toByteArray();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Null if we don't have the group key the message was encrypted under
+    private SegmentedCipher cipherFor(Message message, GroupKeyMap keyMap) throws GeneralSecurityException {
+        List<SecretKey> groupKeys = keyMap.getGroupKeys(message.getGroup());
+        if (groupKeys == null || message.getKeyIndex() >= groupKeys.size()) return null;
+        SecretKey gk = groupKeys.get(message.getKeyIndex());
+        if (gk == null) return null; // Key was retired
+        return new SegmentedCipher(gk, message.getIv());
+    }
+
+    /*
+     * Fetches segment index of a message with READRANGE and decrypts it
+     * A segment that fails to decrypt was damaged on the way and is asked for again
+     */
+    private byte[] readSegment(Message message, SegmentedCipher cipher, int index, UserToken token) {
+        long offset = SegmentedCipher.segmentOffset(index);
+        int length = (int)Math.min(SegmentedCipher.SEGMENT_BYTES + SegmentedCipher.TAG_BYTES, message.getLength() - offset);
+        boolean last = index == SegmentedCipher.segmentCount(message.getLength()) - 1;
+        for (int attempt = 0; attempt < TRANSFER_ATTEMPTS; attempt++) {
+            Envelope env = new Envelope("READRANGE");
+            env.addObject(message.getChannelId());
+            env.addObject(message.getSeq());
+            env.addObject(offset);
+            env.addObject(length);
+            if (!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env == null) continue;
+            if (!env.getMessage().equals("OK")) {
+                System.out.printf("Error downloading message: %s\n", env.getMessage());
+                return null;
+            }
+            byte[] segment = (byte[]) env.getObjContents().get(0);
+            try {
+                return cipher.decrypt(index, last, segment, 0, segment.length);
+            } catch (GeneralSecurityException e) {
+                System.out.printf("Segment %d was damaged, asking again\n", index);
+            }
+        }
+        return null;
+    }
+
+    // One chunk of a message whose hash checked out, or null
+    private byte[] readChunk(Message message, int index, UserToken token) {
+        for (int attempt = 0; attempt < TRANSFER_ATTEMPTS; attempt++) {
+            Envelope env = new Envelope("READCHUNK");
+            env.addObject(message.getChannelId());
+            env.addObject(message.getSeq());
+            env.addObject(index);
+            if (!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env == null) continue;
+            if (!env.getMessage().equals("OK")) {
+                System.out.printf("Error downloading message: %s\n", env.getMessage());
+                return null;
+            }
+            byte[] chunk = (byte[]) env.getObjContents().get(0);
+            byte[] hash = (byte[]) env.getObjContents().get(1);
+            if (MessageDigest.isEqual(hash, suite.hashChunk(chunk, 0, chunk.length))) return chunk;
+            System.out.printf("Chunk %d was damaged, asking again\n", index);
+        }
+        return null;
+    }
+
+    public ArrayList<MessageAndText> readMessages(ChannelSummary channel, UserToken token) {
+        return readMessages(channel, 0, Integer.MAX_VALUE, token);
+    }
+
+    // Up to limit messages with sequence numbers of at least fromSeq, in order
 	@SuppressWarnings("unchecked")
-    public ArrayList<MessageAndText> readMessages(Channel channel, UserToken token) {
+    public ArrayList<MessageAndText> readMessages(ChannelSummary channel, long fromSeq, int limit, UserToken token) {
         Envelope env = new Envelope("READMESSAGES");
-        env.addObject(channel);
+        env.addObject(channel.getId());
+        env.addObject(fromSeq);
+        env.addObject(limit);
         try {
             if(!sendEncrypted(env, token)) return null;
             env = receiveEncrypted();
@@ -201,6 +657,95 @@ public class MessageClient extends Client {
         return null;
     }
 
+    /*
+     * Blocks until the channel has messages after afterSeq or timeout milliseconds pass
+     * Returns the new messages, which is empty on timeout, or null on failure
+     * The server caps how long it will wait
+     */
+	@SuppressWarnings("unchecked")
+    public ArrayList<MessageAndText> waitMessages(ChannelSummary channel, long afterSeq, long timeout, int limit, UserToken token) {
+        Envelope env = new Envelope("WAITMESSAGES");
+        env.addObject(channel.getId());
+        env.addObject(afterSeq);
+        env.addObject(timeout);
+        env.addObject(limit);
+        try {
+            if(!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env.getMessage().equals("OK")) {
+                ArrayList<MessageAndText> messages = (ArrayList<MessageAndText>) env.getObjContents().get(0);
+                return messages;
+			} else {
+				System.out.printf("Error waiting for messages: %s\n", env.getMessage());
+                return null;
+			}
+        } catch (Exception e) {
+			e.printStackTrace();
+		}
+        return null;
+    }
+
+    /*
+     * Subscribes to new messages in the given channels. They are passed to listener as they are sent
+     * From here on a reader thread owns the connection's input and hands responses back through a queue
+     * Returns the IDs of the channels actually subscribed to, or null on failure
+     */
+	@SuppressWarnings("unchecked")
+    public ArrayList<Long> subscribe(ArrayList<Long> channelIds, PushListener listener, UserToken token) {
+        pushListener = listener;
+        startReader();
+        Envelope env = new Envelope("SUBSCRIBE");
+        env.addObject(channelIds);
+        try {
+            if(!sendEncrypted(env, token)) return null;
+            env = receiveEncrypted();
+            if (env.getMessage().equals("OK")) {
+                return (ArrayList<Long>) env.getObjContents().get(0);
+			} else {
+				System.out.printf("Error subscribing: %s\n", env.getMessage());
+                return null;
+			}
+        } catch (Exception e) {
+			e.printStackTrace();
+		}
+        return null;
+    }
+
+    // Pass null to unsubscribe from every channel
+    public boolean unsubscribe(ArrayList<Long> channelIds, UserToken token) {
+        Envelope env = new Envelope("UNSUBSCRIBE");
+        env.addObject(channelIds);
+        try {
+            if(!sendEncrypted(env, token)) return false;
+            env = receiveEncrypted();
+            if (env.getMessage().equals("OK")) {
+                return true;
+			} else {
+				System.out.printf("Error unsubscribing: %s\n", env.getMessage());
+                return false;
+			}
+        } catch (Exception e) {
+			e.printStackTrace();
+		}
+        return false;
+    }
+
+    private synchronized void startReader() {
+        if (responses != null) return;
+        responses = new LinkedBlockingQueue<Envelope>();
+        Thread reader = new Thread(new Reader());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Next envelope from the server that isn't a push
+    private Envelope readEnvelope() throws Exception {
+        if (responses == null) return (Envelope)input.readObject();
+        Envelope env = responses.take();
+        if (env == DISCONNECTED) responses.offer(DISCONNECTED); // So every later read gets it too instead of waiting forever
+        return env;
+    }
+
     // Returns whether client has full valid session tokens
 	public boolean hasSession() {
 		if (suite == null) return false;
@@ -219,13 +764,18 @@ public class MessageClient extends Client {
             Envelope inner = new Envelope("OPERATIONDATA");
             inner.addObject(env);
             inner.addObject(token);
-            Envelope outer = suite.encryptEnvelopeAES(inner, "ENCRYPTEDSESSION", sk);
+            Envelope outer = suite.encryptEnvelopeAES(inner, "ENCRYPTEDSESSION", sk, deflate);
             outer.addObject(ht);
+            outer.addObject(sessionId);
+            if (deflate) outer.addObject(Compression.SESSION_DICTIONARY_ID);
             /* 
             * What are in the indices in outer after the code above executes?
             * 0: A byte[] representing inner encrypted with session key
             * 1: A byte[] representing initialization vector used to encrypt inner
             * 2: An Envelope containing the server's host token for this session
+            * 3: A String session ID the server uses to look up the session key (may be null)
+            * 4: The ID of our session dictionary, only if the server has the same one. inner is then deflated unless that
+            *    didn't make it shorter, and the server deflates its responses too
             */
 			output.writeObject(outer);
 			return true;
@@ -238,7 +788,7 @@ public class MessageClient extends Client {
     // This recieved encrypted messages and also accounts for challenges
 	private Envelope receiveEncrypted() {
 		try {
-			Envelope response = (Envelope)input.readObject();
+			Envelope response = readEnvelope();
             if (response.getMessage().equals("CHALLENGE")){
                 byte[] m = (byte[])response.getObjContents().get(0);
                 int b = (int)response.getObjContents().get(1);
@@ -246,7 +796,7 @@ public class MessageClient extends Client {
                 Envelope chal = new Envelope("CHALLENGE");
                 chal.addObject(n);
                 output.writeObject(chal);
-                response = (Envelope) input.readObject();
+                response = readEnvelope();
             }
 			if (response.getMessage().equals("ENCRYPTEDSESSION")) {
 				byte[] enc = (byte[])response.getObjContents().get(0);
@@ -281,4 +831,45 @@ public class MessageClient extends Client {
 
         return null;
     }
+
+    /*
+     * Reads everything the server sends, handing pushes to the listener and everything else to receiveEncrypted
+     * Only a failed read ends it. A push that can't be decrypted or understood is skipped
+     */
+    private class Reader implements Runnable {
+        public void run() {
+            while (true) {
+                Object obj;
+                try {
+                    obj = input.readObject();
+                } catch (Exception e) {
+                    break;
+                }
+                if (!(obj instanceof Envelope)) continue;
+                Envelope env = (Envelope)obj;
+                if (!"PUSH".equals(env.getMessage())) {
+                    responses.offer(env);
+                    continue;
+                }
+                try {
+                    handlePush(env);
+                } catch (Exception e) {
+                    System.err.println("Ignoring a push that could not be read: " + e);
+                }
+            }
+            // Connection closed. Wake up anyone waiting for a response, now and later
+            responses.offer(DISCONNECTED);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handlePush(Envelope env) throws Exception {
+            Envelope push = suite.decryptEnvelopeAES((byte[])env.getObjContents().get(0), (byte[])env.getObjContents().get(1), sk);
+            if (push == null || pushListener == null) return;
+            if (push.getMessage().equals("MESSAGE")) {
+                pushListener.messagePushed((MessageAndText)push.getObjContents().get(0));
+            } else if (push.getMessage().equals("RESYNC")) {
+                pushListener.resyncNeeded((ArrayList<Long>)push.getObjContents().get(0));
+            }
+        }
+    }
 }
@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Checks the channel list against the message files on disk, in the background after the host server starts
+ * Orphans are files no message refers to, left behind by crashes between writing a file and adding its message
+ * Dangling messages refer to files that are gone
+ * Both are reported, and only cleaned up when repair is set. Archived channels are skipped
+ * Orphans aren't deleted here: blobs go to MessageServer.blobs and other files to MessageServer.reclaimer,
+ * which only delete them once a checkpoint allows it, like any other file they are given
+ * Channels are read with Channel.readMessages, so only those with a dangling message to remove get loaded
+ * The messages are collected before the directories are listed, so every message collected already had its file written,
+ * and files newer than the grace period are left alone since they may belong to a send still in progress
+ */
+
+public class MessageScanner implements Runnable {
+
+    private MessageStore store;
+    private ChannelList channelList;
+    private int threads;
+    private long grace; // Milliseconds an unreferenced file has to be old to count as an orphan
+    private boolean repair;
+
+    public MessageScanner(MessageStore _store, ChannelList _channelList, int _threads, long _grace, boolean _repair) {
+        store = _store;
+        channelList = _channelList;
+        threads = _threads;
+        grace = _grace;
+        repair = _repair;
+    }
+
+    // Runs the scan on a thread of its own so startup doesn't wait for it
+    public void start() {
+        Thread t = new Thread(this, "message-scan");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    public void run() {
+        long started = System.currentTimeMillis();
+        HashMap<String, Channel> owners = new HashMap<String, Channel>();
+        HashMap<String, Long> referenced = new HashMap<String, Long>(); // Sequence number of the message using each file
+        for (Channel c: channelList.copyChannels()) {
+            if (c.isArchived()) continue; // Its messages are in the archive, and any files left of them are already being reclaimed
+            try {
+                for (Message m: c.readMessages()) {
+                    owners.put(m.getPath(), c);
+                    referenced.put(m.getPath(), m.getSeq());
+                }
+            } catch (RuntimeException e) { // Channel couldn't be loaded from the metadata store
+                System.err.println("Message scan skipped channel " + c.getGroup() + "/" + c.getName() + ": " + e.getMessage());
+            }
+        }
+
+        ConcurrentHashMap<String, File> onDisk = listFiles();
+        if (onDisk == null) return;
+
+        int orphans = 0;
+        ArrayList<String> unused = new ArrayList<String>(); // Orphans that aren't blobs
+        for (Map.Entry<String, File> e: onDisk.entrySet()) {
+            if (referenced.containsKey(e.getKey())) continue;
+            File f = e.getValue();
+            if (f.lastModified() > started - grace) continue;
+            orphans++;
+            System.out.println("Orphaned message file: " + f.getPath());
+            if (!repair) continue;
+            if (BlobStore.isBlob(e.getKey())) {
+                MessageServer.blobs.collectOrphan(e.getKey());
+            } else {
+                unused.add(e.getKey());
+            }
+        }
+        if (!unused.isEmpty()) {
+            try {
+                MessageServer.reclaimer.queue(MessageServer.reclaimer.record(0, unused), unused.size()); // No channel uses them
+            } catch (IOException e) {
+                System.err.println("Could not record orphaned message files: " + e.getMessage());
+            }
+        }
+
+        int dangling = 0;
+        int removed = 0;
+        for (Map.Entry<String, Long> e: referenced.entrySet()) {
+            if (onDisk.containsKey(e.getKey())) continue;
+            String path = e.getKey();
+            long seq = e.getValue();
+            Channel c = owners.get(path);
+            if (store.fileFor(path).exists()) continue; // Was written after the listing
+            synchronized (MessageThread.class) { // Same lock as the message handlers
+                if (channelList.getChannel(c.getId()) != c || c.isArchived()) continue; // Deleted or archived meanwhile
+                Message m = c.getMessage(seq);
+                if (m == null || !m.getPath().equals(path)) continue; // Removed or given a new file meanwhile
+                dangling++;
+                System.out.printf("Message %d in channel %s/%s has no file %s\n", seq, c.getGroup(), c.getName(), path);
+                if (repair) {
+                    c.removeMessage(seq);
+                    removed++;
+                }
+            }
+        }
+
+        System.out.printf("Message scan: %d files, %d messages, %d orphans (%s), %d dangling (%d removed) in %d ms\n",
+            onDisk.size(), referenced.size(), orphans, repair ? "left to be collected" : "kept", dangling, removed, System.currentTimeMillis() - started);
+    }
+
+    // Message file names found on disk, each top-level shard listed on its own thread
+    private ConcurrentHashMap<String, File> listFiles() {
+        ConcurrentHashMap<String, File> onDisk = new ConcurrentHashMap<String, File>();
+        File[] top = store.getDir().listFiles();
+        if (top == null) {
+            System.err.println("Message scan could not list " + store.getDir());
+            return null;
+        }
+        ArrayList<File> shards = new ArrayList<File>();
+        for (File f: top) {
+            if (f.isDirectory()) {
+                shards.add(f);
+            } else {
+                onDisk.put(f.getName(), f); // Not migrated yet
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (File shard: shards) {
+            pool.submit(() -> {
+                File[] subs = shard.listFiles();
+                if (subs == null) return;
+                for (File sub: subs) {
+                    File[] files = sub.listFiles();
+                    if (files == null) continue;
+                    for (File f: files) {
+                        onDisk.put(f.getName(), f);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            return null;
+        }
+        return onDisk;
+    }
+}
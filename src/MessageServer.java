@@ -7,6 +7,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import java.security.PublicKey;
 
@@ -20,8 +24,10 @@ import java.security.NoSuchAlgorithmException;
 
 /*
  * Creates threads for incoming connections
- * Maintains channel list
- * Helper classes save channel list to ChannelList.bin every 5 minutes or on shutdown
+ * Maintains channel list, backed by the metadata store picked with metadataStoreType
+ * Helper classes checkpoint the metadata store every 5 minutes or on shutdown
+ * Channels unused for archiveAfter are moved to the archive folder by archiver
+ * Message files are blobs named by their hash, collected by blobs once no message uses them
  * Also creates messages folder if it does not exist already
  */
 
@@ -33,6 +39,14 @@ public class MessageServer extends Server {
 	public static String publicKeyFile = "HostPublic.bin";
 	public static String masterKeyFile = "HostMaster.bin";
 	public static int bBits = 20;
+	public static int sessionCapacity = 4096; // Most host sessions remembered at once
+	public static long sessionTimeout = 1800000; // Forget sessions idle for 30 minutes
+	public static String metadataStoreType = System.getProperty("messageserver.store", "snapshot"); // "snapshot" or "lsm"
+	public static String metadataDir = "metadata"; // Directory of the lsm store
+	public static int metadataCacheMessages = 100000; // Messages the lsm store keeps in heap before evicting channels
+	public static long metadataTableBytes = 4 << 20; // Writes buffered in memory before they are sorted into a run
+	public static int metadataCompactRuns = 8; // Runs on disk that trigger a compaction
+	public static long metadataBlockCacheBytes = 32 << 20;
 	
 	public ServerSocket serverSock;
 	public static PublicKey publicKey = null;
@@ -40,6 +54,46 @@ public class MessageServer extends Server {
 	public static SecretKey masterKey = null;
 
 	public static CryptoSuite suite;
+	public static SessionTable sessionTable;
+	public static MetadataStore metadataStore;
+	public static ChannelWaiters channelWaiters = new ChannelWaiters();
+	public static FanOut fanOut = new FanOut();
+	public static int subscriberQueueSize = 256; // Pushes queued for a slow subscriber before its channel is resynced
+	public static long commitWindow = 2; // Milliseconds to gather message writes into one fsync batch
+	public static int commitBatchSize = 256; // Most message writes in one batch
+	public static MessageStore messageStore;
+	public static int ioThreads = 32; // Requests writing message files at once, enough to fill commit batches
+	public static ExecutorService ioExecutor;
+	public static int readThreads = 16; // Message files read at once for a page of messages
+	public static ExecutorService readExecutor;
+	public static long textCacheBytes = 16 << 20; // Message ciphertexts kept in heap for repeated reads
+	public static TextCache textCache;
+	public static long responseCacheBytes = 16 << 20; // Serialized read responses kept for unchanged channels
+	public static ResponseCache responseCache;
+	public static int reclaimRate = 500; // Message files of deleted channels removed per second
+	public static Reclaimer reclaimer;
+	public static RetentionList retention;
+	public static long sweepInterval = 60000; // Milliseconds between retention sweeps
+	public static int sweepBatch = 500; // Messages expired from a channel at a time
+	public static long sweepPause = 50; // Milliseconds between batches, so writers get the lock
+	public static RetentionSweeper sweeper;
+	public static int scanThreads = 8; // Threads listing the messages directory at startup
+	public static long scanGrace = 3600000; // Unreferenced message files younger than an hour are left alone
+	public static boolean scanRepair = Boolean.getBoolean("messageserver.repair"); // Delete orphaned files and drop messages whose files are gone
+	public static long archiveAfter = 21L * 86400000; // Channels unused for three weeks are archived
+	public static long archiveInterval = 3600000; // Milliseconds between looks for channels to archive
+	public static long archiveRestoreBytes = 8 << 20; // Message files written back per batch when a channel is restored
+	public static Archiver archiver;
+	public static int uploadChunkBytes = 256 << 10; // Size of the chunks long messages are uploaded and downloaded in
+	public static long maxUploadBytes = 1L << 30; // Longest message that can be uploaded
+	public static int maxUploads = 64; // Uploads in progress at once
+	public static long uploadTimeout = 3600000; // Uploads idle for an hour are dropped
+	public static UploadTable uploads;
+	public static boolean sessionCompression = !"false".equals(System.getProperty("messageserver.compress")); // Offer deflated sessions to clients
+	public static int maxInflatedBytes = 16 << 20; // Largest a deflated request may inflate to
+	public static long blobGrace = 3600000; // Unreferenced blobs are kept for an hour after they were last written
+	public static long blobInterval = 60000; // Milliseconds between collections of unreferenced blobs
+	public static BlobStore blobs;
 	
 	public MessageServer() {
 		super(SERVER_PORT, "MessageServer");
@@ -51,36 +105,28 @@ public class MessageServer extends Server {
 	
 	public void start() {
 		loadKeys();
+		sessionTable = new SessionTable(sessionCapacity, sessionTimeout);
 		String listFile = "ChannelList.bin";
-		ObjectInputStream fileStream;
 		
 		//This runs a thread that saves the lists on program exit
 		Runtime runtime = Runtime.getRuntime();
 		Thread catchExit = new Thread(new ShutDownListenerChannels());
 		runtime.addShutdownHook(catchExit);
 		
-		//Open user file to get user list
+		//Open the metadata store to get channel list. Only the channel directory is read here
 		try
 		{
-			FileInputStream fis = new FileInputStream(listFile);
-			fileStream = new ObjectInputStream(fis);
-			channelList = (ChannelList)fileStream.readObject();
-		}
-		catch(FileNotFoundException e)
-		{
-			System.out.println("ChannelList does not exist. Creating ChannelList...");
-			
-			channelList = new ChannelList();
-			
+			if (metadataStoreType.equals("lsm")) {
+				metadataStore = new LsmMetadataStore(new File(metadataDir), listFile, metadataCacheMessages, metadataTableBytes, metadataCompactRuns, metadataBlockCacheBytes);
+			}
+			else {
+				metadataStore = new SnapshotMetadataStore(listFile);
+			}
+			channelList = metadataStore.load();
 		}
 		catch(IOException e)
 		{
-			System.out.println("Error reading from ChannelList file");
-			System.exit(-1);
-		}
-		catch(ClassNotFoundException e)
-		{
-			System.out.println("Error reading from ChannelList file");
+			System.out.println("Error reading from the metadata store");
 			System.exit(-1);
 		}
 		
@@ -94,6 +140,47 @@ public class MessageServer extends Server {
 		 else {
 			 System.out.println("Error creating messages directory");				 
 		 }
+		messageStore = new MessageStore(file, commitWindow, commitBatchSize);
+		blobs = new BlobStore(messageStore, channelList, blobGrace, blobInterval);
+		textCache = new TextCache(textCacheBytes);
+		responseCache = new ResponseCache(responseCacheBytes);
+		File reclaimDir = new File("reclaim");
+		reclaimDir.mkdir();
+		reclaimer = new Reclaimer(reclaimDir, messageStore, reclaimRate);
+		File uploadDir = new File("uploads"); // Next to messages, so finished uploads are renamed into the store
+		uploadDir.mkdir();
+		uploads = new UploadTable(uploadDir, uploadChunkBytes, maxUploadBytes, maxUploads, uploadTimeout);
+		File archiveDir = new File("archive");
+		archiveDir.mkdir();
+		archiver = new Archiver(archiveDir, messageStore, archiveAfter, archiveInterval, archiveRestoreBytes);
+		archiver.attach(channelList);
+		try {
+			reclaimer.resume(channelList);
+		} catch (IOException e) {
+			System.out.println("Error resuming deletion of message files");
+		}
+		reclaimer.start();
+		try {
+			retention = new RetentionList(new File("ChannelRetention.bin"), new File("retention.properties"));
+		} catch (IOException e) {
+			System.out.println("Error reading ChannelRetention.bin");
+			System.exit(-1);
+		}
+		sweeper = new RetentionSweeper(sweepInterval, sweepBatch, sweepPause);
+		sweeper.start();
+		archiver.start();
+		blobs.start();
+		new MessageScanner(messageStore, channelList, scanThreads, scanGrace, scanRepair).start();
+		ioExecutor = Executors.newFixedThreadPool(ioThreads, r -> {
+			Thread t = new Thread(r, "message-io");
+			t.setDaemon(true);
+			return t;
+		});
+		readExecutor = Executors.newFixedThreadPool(readThreads, r -> {
+			Thread t = new Thread(r, "message-read");
+			t.setDaemon(true);
+			return t;
+		});
 		
 		String fingerprint = suite.getFingerprint(publicKey);
 		System.out.printf("Message Server Fingerprint: %s\n", fingerprint);
@@ -179,21 +266,33 @@ public class MessageServer extends Server {
 			System.exit(-1);
 		}
 		suite = new CryptoSuite(publicKey, privateKey);
+		suite.setMaxInflatedBytes(maxInflatedBytes);
 	}
 }
 
-//This thread saves user and group lists
+//This thread saves the channel list
 class ShutDownListenerChannels implements Runnable
 {
 	public void run()
 	{
 		System.out.println("Shutting down server");
-		ObjectOutputStream outStream;
+		if (MessageServer.channelList == null) return;
 
 		try
 		{
-			outStream = new ObjectOutputStream(new FileOutputStream("ChannelList.bin"));
-			outStream.writeObject(MessageServer.channelList);
+			if (MessageServer.ioExecutor != null) {
+				MessageServer.ioExecutor.shutdown();
+				MessageServer.ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			if (MessageServer.sweeper != null) MessageServer.sweeper.close();
+			if (MessageServer.archiver != null) MessageServer.archiver.close();
+			if (MessageServer.reclaimer != null) MessageServer.reclaimer.close();
+			if (MessageServer.blobs != null) MessageServer.blobs.close();
+			if (MessageServer.messageStore != null) MessageServer.messageStore.close();
+			ArrayList<ChannelArchive> retired = MessageServer.archiver != null ? MessageServer.archiver.takeRetired() : new ArrayList<ChannelArchive>();
+			MessageServer.metadataStore.checkpoint(MessageServer.channelList);
+			MessageServer.metadataStore.close();
+			if (MessageServer.archiver != null) MessageServer.archiver.deleteRetired(retired);
 		}
 		catch(Exception e)
 		{
@@ -213,11 +312,21 @@ class AutoSaveChannels extends Thread
 			{
 				Thread.sleep(300000); //Save group and user lists every 5 minutes
 				System.out.println("Autosave file list...");
-				ObjectOutputStream outStream;
 				try
 				{
-					outStream = new ObjectOutputStream(new FileOutputStream("ChannelList.bin"));
-					outStream.writeObject(MessageServer.channelList);
+					ArrayList<ChannelArchive> retired = MessageServer.archiver.takeRetired();
+					ArrayList<Reclaimer.Pending> freed = MessageServer.reclaimer.takeWaiting();
+					long started = System.currentTimeMillis();
+					MessageServer.metadataStore.checkpoint(MessageServer.channelList);
+					MessageServer.archiver.deleteRetired(retired);
+					MessageServer.reclaimer.startDeleting(freed);
+					MessageServer.blobs.checkpointed(started);
+					System.out.println("Message cache: " + MessageServer.textCache);
+					System.out.println("Response cache: " + MessageServer.responseCache);
+					System.out.println("Reclaimer: " + MessageServer.reclaimer);
+					System.out.println("Retention: " + MessageServer.sweeper);
+					System.out.println("Archive: " + MessageServer.archiver);
+					System.out.println("Blobs: " + MessageServer.blobs);
 				}
 				catch(Exception e)
 				{
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/*
+ * Durable writes of message files for the host server
+ * Can be found as MessageServer.messageStore
+ * Message files are spread over two levels of 256 subdirectories picked by a hash of the file name,
+ * so no directory gets too big to list or search. Use fileFor to find one
+ * Stores from before the split still have files directly in the messages directory until MigrateMessages is run,
+ * and fileFor falls back to those
+ * Callers write their file and then wait while a single committer thread forces it to disk
+ * The committer gathers the files handed to it within a short window and forces them as one batch,
+ * followed by one fsync of each directory that got new entries
+ * A write only returns once its batch is on disk, so a message is never acknowledged before it is durable
+ */
+
+public class MessageStore implements Runnable {
+
+    private File dir;
+    private boolean legacy; // Some message files are still directly in dir
+    private SecureRandom random = new SecureRandom();
+    private HashSet<File> durableDirs = new HashSet<File>(); // Shards whose own entries are known to be on disk, committer only
+    private long window; // Milliseconds the committer waits for more writes after the first one arrives
+    private int maxBatch;
+    private ArrayList<Pending> pending;
+    private boolean closed = false;
+    private boolean busy = false; // Committer is forcing a batch
+    private long batches = 0;
+    private long commits = 0;
+
+    public MessageStore(File _dir, long _window, int _maxBatch) {
+        dir = _dir;
+        window = _window;
+        maxBatch = _maxBatch;
+        pending = new ArrayList<Pending>();
+        legacy = hasFlatFiles(dir);
+        if (legacy) System.out.println("Messages directory is not sharded yet, run MigrateMessages to move its files");
+        Thread committer = new Thread(this);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Subdirectory a message file with this name belongs in
+    public static File shardOf(File dir, String name) {
+        int h = name.hashCode();
+        return new File(new File(dir, String.format("%02x", (h >>> 8) & 0xff)), String.format("%02x", h & 0xff));
+    }
+
+    // The message file with this name
+    public File fileFor(String name) {
+        File file = new File(shardOf(dir, name), name);
+        if (legacy && !file.exists()) {
+            File flat = new File(dir, name);
+            if (flat.exists()) return flat;
+        }
+        return file;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    // Writes bytes to a new file in the store and returns it once it is durable
+    // Its name is prefix, a random number and suffix, like File.createTempFile
+    public File write(String prefix, String suffix, byte[] bytes) throws IOException {
+        return writeAll(prefix, suffix, List.of(bytes)).get(0);
+    }
+
+    // Writes several new files like write, all in one batch, and returns them in the same order
+    public ArrayList<File> writeAll(String prefix, String suffix, List<byte[]> contents) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<Pending> batch = new ArrayList<Pending>();
+        try {
+            for (byte[] bytes: contents) {
+                files.add(create(prefix, suffix, bytes, batch));
+            }
+        } catch (IOException e) {
+            for (Pending p: batch) {
+                try {
+                    p.channel.close();
+                } catch (IOException ex) {
+                }
+            }
+            for (File f: files) {
+                f.delete();
+            }
+            throw e;
+        }
+        try {
+            commit(batch);
+        } catch (IOException e) {
+            for (File f: files) {
+                f.delete();
+            }
+            throw e;
+        }
+        return files;
+    }
+
+    // Creates a file with a new name and adds it to batch, not yet forced
+    private File create(String prefix, String suffix, byte[] bytes, List<Pending> batch) throws IOException {
+        while (true) {
+            String name = prefix + Long.toUnsignedString(random.nextLong()) + suffix;
+            File shard = makeShard(name);
+            File file = new File(shard, name);
+            FileChannel ch;
+            try {
+                ch = writeFile(file, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) { // Someone else's file
+                continue;
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            batch.add(new Pending(ch, shard, null, null));
+            return file;
+        }
+    }
+
+    /*
+     * Writes files under names picked from their contents, like BlobStore does, all in one batch
+     * and returns them in the same order once they are durable
+     * A file already there with the right length is taken to hold the same bytes. It is only forced again,
+     * and its modification time bumped so MessageScanner takes it as new. One with another length is replaced
+     * Nothing is deleted on failure, since the files may be shared
+     */
+    public ArrayList<File> writeNamed(List<String> names, List<byte[]> contents) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<Pending> batch = new ArrayList<Pending>();
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                File shard = makeShard(names.get(i));
+                File file = new File(shard, names.get(i));
+                byte[] bytes = contents.get(i);
+                try {
+                    batch.add(writeNamed(shard, file, bytes));
+                } catch (FileAlreadyExistsException e) { // Written by someone else just now
+                    batch.add(writeNamed(shard, file, bytes));
+                }
+                files.add(file);
+            }
+        } catch (IOException e) {
+            for (Pending p: batch) {
+                try {
+                    p.channel.close();
+                } catch (IOException ex) {
+                }
+                if (p.from != null) p.from.delete();
+            }
+            throw e;
+        }
+        commit(batch);
+        return files;
+    }
+
+    private Pending writeNamed(File shard, File file, byte[] bytes) throws IOException {
+        if (file.exists() && file.length() == bytes.length) {
+            file.setLastModified(System.currentTimeMillis());
+            return new Pending(FileChannel.open(file.toPath(), StandardOpenOption.READ), shard, null, null);
+        }
+        if (file.exists()) {
+            File temp = File.createTempFile("tmp", ".new", shard);
+            try {
+                return new Pending(writeFile(temp, bytes, StandardOpenOption.WRITE), shard, temp, file);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+        }
+        return new Pending(writeFile(file, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), shard, null, null);
+    }
+
+    /*
+     * Moves a finished file into the store under name and returns it once it is durable
+     * The file has to be on the same file system as the store, since it is renamed rather than copied
+     * If a file of the same length already has that name, as with a content-addressed name, that one is kept and the file deleted
+     */
+    public File adopt(File file, String name) throws IOException {
+        File shard = makeShard(name);
+        File target = new File(shard, name);
+        if (target.exists() && target.length() == file.length()) {
+            file.delete();
+            target.setLastModified(System.currentTimeMillis());
+            commit(FileChannel.open(target.toPath(), StandardOpenOption.READ), shard, null, null);
+        } else {
+            commit(FileChannel.open(file.toPath(), StandardOpenOption.WRITE), shard, file, target);
+        }
+        return target;
+    }
+
+    // The shard a file with this name belongs in, created if it isn't there yet
+    private File makeShard(String name) throws IOException {
+        File shard = shardOf(dir, name);
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("Could not create " + shard);
+        }
+        return shard;
+    }
+
+    /*
+     * Replaces the contents of an existing file and returns once they are durable
+     * The new contents go to a temporary file that is renamed over the old one after it is forced,
+     * so readers that have the old file open keep seeing it whole and a crash leaves one or the other
+     */
+    public void overwrite(File file, byte[] bytes) throws IOException {
+        File temp = File.createTempFile("tmp", ".new", file.getParentFile());
+        try {
+            commit(writeFile(temp, bytes, StandardOpenOption.WRITE), file.getParentFile(), temp, file);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private FileChannel writeFile(File file, byte[] bytes, StandardOpenOption... options) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), options);
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    // Hands the channel of a file in parent to the committer, which closes it and renames from to to if given, and waits for its batch
+    private void commit(FileChannel ch, File parent, File from, File to) throws IOException {
+        commit(List.of(new Pending(ch, parent, from, to)));
+    }
+
+    private void commit(List<Pending> batch) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                for (Pending p: batch) {
+                    p.channel.close();
+                }
+                throw new IOException("Message store is closed");
+            }
+            pending.addAll(batch);
+            notifyAll();
+            for (Pending p: batch) {
+                while (!p.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for commit");
+                    }
+                }
+            }
+        }
+        for (Pending p: batch) {
+            if (p.error != null) throw p.error;
+        }
+    }
+
+    // Commits whatever is still pending and stops the committer
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        while (!pending.isEmpty() || busy) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    public void run() {
+        while (true) {
+            ArrayList<Pending> batch;
+            synchronized (this) {
+                while (!closed && pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && pending.isEmpty()) return;
+                long deadline = System.currentTimeMillis() + window;
+                long left = window;
+                while (!closed && pending.size() < maxBatch && left > 0) {
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    left = deadline - System.currentTimeMillis();
+                }
+                batch = pending;
+                pending = new ArrayList<Pending>();
+                busy = true;
+            }
+
+            // Each file has its own data to force. One sync per directory then covers every new entry in it
+            LinkedHashSet<File> dirs = new LinkedHashSet<File>();
+            for (Pending p: batch) {
+                dirs.add(p.parent);
+                if (!p.parent.equals(dir) && !durableDirs.contains(p.parent)) { // Shard may be new, so make sure the levels above list it
+                    dirs.add(p.parent.getParentFile());
+                    dirs.add(dir);
+                }
+                try {
+                    p.channel.force(true);
+                } catch (IOException e) {
+                    p.error = e;
+                } finally {
+                    try {
+                        p.channel.close();
+                    } catch (IOException e) {
+                    }
+                }
+                if (p.error == null && p.to != null) {
+                    try {
+                        Files.move(p.from.toPath(), p.to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        p.error = e;
+                    }
+                }
+            }
+            for (File d: dirs) {
+                syncDir(d);
+            }
+            for (Pending p: batch) {
+                durableDirs.add(p.parent);
+            }
+
+            synchronized (this) {
+                for (Pending p: batch) {
+                    p.done = true;
+                }
+                busy = false;
+                batches++;
+                commits += batch.size();
+                notifyAll();
+            }
+        }
+    }
+
+    // Makes a directory's entries durable
+    public static void syncDir(File d) {
+        try {
+            FileChannel ch = FileChannel.open(d.toPath(), StandardOpenOption.READ);
+            try {
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+        } catch (IOException e) {
+            // Not every platform can open a directory. The file data is still on disk
+        }
+    }
+
+    // True if there is any regular file directly in dir, so it still has unsharded message files
+    private static boolean hasFlatFiles(File dir) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+            for (Path p: entries) {
+                if (Files.isRegularFile(p)) return true;
+            }
+        } catch (IOException e) {
+            return true;
+        }
+        return false;
+    }
+
+    private static class Pending {
+        private FileChannel channel;
+        private File parent; // Directory the file is in
+        private File from; // Renamed to to once forced, if set
+        private File to;
+        private boolean done = false;
+        private IOException error = null;
+
+        public Pending(FileChannel _channel, File _parent, File _from, File _to) {
+            channel = _channel;
+            parent = _parent;
+            from = _from;
+            to = _to;
+        }
+    }
+}
@@ -1,13 +1,23 @@
 import java.lang.Thread;
 import java.net.Socket;
+import java.security.MessageDigest;
 import java.security.PublicKey;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import javax.crypto.SecretKey;
 
@@ -16,15 +26,20 @@ import java.util.ArrayList;
 /*
  * Host server thread for handling message-related requests from the user
  * Performs checks for authorization, updates channel list, saves message files, etc.
+ * Operations that write or delete message files run on MessageServer.ioExecutor, so this thread can read the next request
+ * meanwhile; their responses are still written in request order
+ * Messages longer than MAX_MESSAGE_BYTES are uploaded and downloaded in chunks, and reads leave their text out
  */
 
 public class MessageThread extends Thread
 {
-	private static String MESSAGE_FILE_PREFIX = "msg";
-	private static String MESSAGE_FILE_SUFFIX = ".txt";
 	private static int MAX_MESSAGE_BYTES = 4096;
+	private static long MAX_WAIT_MILLIS = 60000; // Longest a WAITMESSAGES request may block
 	
 	private final Socket socket;
+	private ObjectOutputStream output; // Shared with this connection's Subscriber, so writes synchronize on it
+	private Subscriber subscriber = null; // Created by the first SUBSCRIBE
+	private CompletableFuture<Void> replies = CompletableFuture.completedFuture(null); // Completes once every queued response is written
 
 	public MessageThread(Socket _socket)
 	{
@@ -38,7 +53,7 @@ public class MessageThread extends Thread
 		{
 			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + "***");
 			final ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
-			final ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+			output = new ObjectOutputStream(socket.getOutputStream());
 			Envelope response;
             do {
                 Envelope e = (Envelope)input.readObject();
@@ -46,25 +61,60 @@ public class MessageThread extends Thread
 				if (e.getMessage().equals("ENCRYPTEDSESSION")) {
 					Envelope challengeResp = challengeClient(input, output);
 					if (challengeResp == null) {
-						response = decryptAndOperate(e);
+						reply(decryptAndOperate(e));
 					} else {
-						response = challengeResp;
+						reply(done(challengeResp));
 					}
-					output.writeObject(response);
 				} else if (e.getMessage().equals("GETSESSIONKEY")) {
 					response = getSessionKey(e);
-					output.writeObject(response);
+					reply(done(response));
 				} else if (e.getMessage().equals("DISCONNECT")) {
-					socket.close();
+					replies.whenComplete((v, ex) -> closeSocket());
 					proceed = false;
 				}
             } while (proceed);
         } catch(Exception e) {
 			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
+		} finally {
+			if (subscriber != null) subscriber.close();
 		}
 	}
 
+	private void send(Envelope env) throws IOException {
+		synchronized (output) {
+			output.writeObject(env);
+			output.reset(); // Otherwise the stream keeps every object it has written, for as long as the connection lasts
+		}
+	}
+
+	// Writes the response once it is ready and every response queued before it has been written
+	private void reply(CompletableFuture<Envelope> response) {
+		replies = replies.thenCompose(v -> response).thenAccept(env -> {
+			try {
+				send(env);
+			} catch (IOException ex) {
+				closeSocket();
+			}
+		});
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	private static CompletableFuture<Envelope> done(Envelope env) {
+		return CompletableFuture.completedFuture(env);
+	}
+
+	// Runs an operation that touches message files on the I/O executor
+	private static CompletableFuture<Envelope> onDisk(Supplier<Envelope> op) {
+		return CompletableFuture.supplyAsync(op, MessageServer.ioExecutor);
+	}
+
 	// This performs a challenge that the client needs to complete before they're allowed to do things like send and read messages
 	// Returns null if the challenge was successful
 	private Envelope challengeClient(ObjectInputStream input, ObjectOutputStream output) {
@@ -73,7 +123,7 @@ public class MessageThread extends Thread
 			byte[] m = MessageServer.suite.generateSalt(); // Using salt function for m because it's 8 random bytes
 			env.addObject(m);
 			env.addObject(MessageServer.bBits); // Number of leading 0-bits needed
-			output.writeObject(env);
+			reply(done(env)); // Behind any responses still being worked on
 			Envelope resp = (Envelope)input.readObject();
 			if (resp.getObjContents().size() < 1) return new Envelope("FAIL-BADENVELOPE");
 			byte[] n = (byte[])resp.getObjContents().get(0);
@@ -88,70 +138,188 @@ public class MessageThread extends Thread
 
 	}
 
-	// Decrypts parts of envelope, performs requested operation, and returns message
-	private Envelope decryptAndOperate(Envelope env1) {
+	// Decrypts parts of envelope, performs requested operation, and returns message once the operation is done
+	private CompletableFuture<Envelope> decryptAndOperate(Envelope env1) {
 		try {
 			// Check envelope contents for null
-			if (env1.getObjContents().size() < 3) return new Envelope("FAIL-BADENVELOPE");
+			if (env1.getObjContents().size() < 3) return done(new Envelope("FAIL-BADENVELOPE"));
 			byte[] enc = (byte[])env1.getObjContents().get(0);
 			byte[] enc_iv = (byte[])env1.getObjContents().get(1);
 			Envelope ht = (Envelope)env1.getObjContents().get(2);
-			if (enc == null) return new Envelope("FAIL-BADENCRYPTION");
-			if (enc_iv == null) return new Envelope("FAIL-BADIV");
-			if (ht == null) return new Envelope("FAIL-BADHOSTTOKEN");
+			// A client that has our session dictionary sends its ID, and gets deflated responses and pushes
+			boolean deflate = MessageServer.sessionCompression && env1.getObjContents().size() > 4
+				&& Integer.valueOf(Compression.SESSION_DICTIONARY_ID).equals(env1.getObjContents().get(4));
+			if (enc == null) return done(new Envelope("FAIL-BADENCRYPTION"));
+			if (enc_iv == null) return done(new Envelope("FAIL-BADIV"));
+			if (ht == null) return done(new Envelope("FAIL-BADHOSTTOKEN"));
 
-			// Get session key
-			if (ht.getObjContents().size() < 2) return new Envelope("FAIL-BADHOSTTOKEN");
-			Envelope decHt = decryptHostToken(ht);
-			SecretKey sk = (SecretKey)decHt.getObjContents().get(0);
+			// Get session key, only decrypting the host token if the session isn't in the table
+			SecretKey sk = null;
+			if (env1.getObjContents().size() > 3) {
+				String sessionId = (String)env1.getObjContents().get(3);
+				if (sessionId != null) sk = MessageServer.sessionTable.get(sessionId);
+			}
+			if (sk == null) {
+				if (ht.getObjContents().size() < 2) return done(new Envelope("FAIL-BADHOSTTOKEN"));
+				Envelope decHt = decryptHostToken(ht);
+				if (decHt == null) return done(new Envelope("FAIL-BADHOSTTOKEN"));
+				sk = (SecretKey)decHt.getObjContents().get(0);
+				// Session expired or was evicted, so put it back in the table
+				if (decHt.getObjContents().size() > 1) {
+					MessageServer.sessionTable.put((String)decHt.getObjContents().get(1), sk);
+				}
+			}
 
 			// Decrypt message envelope
 			Envelope env2 = MessageServer.suite.decryptEnvelopeAES(enc, enc_iv, sk);
-			if (!env2.getMessage().equals("OPERATIONDATA")) return new Envelope("FAIL-BADINNERENVELOPE");
+			if (!env2.getMessage().equals("OPERATIONDATA")) return done(new Envelope("FAIL-BADINNERENVELOPE"));
 			Envelope opInfo = (Envelope)env2.getObjContents().get(0);
 			System.out.printf("\tEncrypted request: %s\n", opInfo.getMessage());
 			Token token = (Token)env2.getObjContents().get(1);
 
 			// Verify the signature on the token
 			PublicKey authPub = getAuthPublicKey(); // Read from AuthPublic.bin
-			if (!MessageServer.suite.verifyToken(token, authPub)) return new Envelope("FAIL-BADUSERTOKEN");
+			if (!MessageServer.suite.verifyToken(token, authPub)) return done(new Envelope("FAIL-BADUSERTOKEN"));
 
 			// Perform the requested operation and respond;
-			Envelope response;
+			CompletableFuture<Envelope> response;
 			switch (opInfo.getMessage()){
 				case "GETCHANNELS":
-					response = getChannels(token);
+					response = done(getChannels(token));
 					break;
 				case "CREATECHANNEL":
-					response = createChannel(opInfo, token);
+					response = done(createChannel(opInfo, token));
 					break;
 				case "DELETECHANNEL":
-					response = deleteChannel(opInfo, token);
+					response = onDisk(() -> deleteChannel(opInfo, token));
 					break;
 				case "SENDMESSAGE":
-					response = sendMessage(opInfo, token);
+					response = onDisk(() -> sendMessage(opInfo, token));
 					break;
 				case "DELETEMESSAGE":
-					response = deleteMessage(opInfo, token);
+					response = onDisk(() -> deleteMessage(opInfo, token));
 					break;
 				case "SETMESSAGE":
-					response = setMessage(opInfo, token);
+					response = onDisk(() -> setMessage(opInfo, token));
 					break;
 				case "READMESSAGES":
-					response = readMessages(opInfo, token);
+					response = done(readMessages(opInfo, token, deflate));
+					break;
+				case "WAITMESSAGES":
+					response = done(waitMessages(opInfo, token, deflate));
+					break;
+				case "SUBSCRIBE":
+					response = done(subscribe(opInfo, token, sk, deflate));
+					break;
+				case "UNSUBSCRIBE":
+					response = done(unsubscribe(opInfo));
+					break;
+				case "READSTALEMESSAGES":
+					response = done(readStaleMessages(opInfo, token));
+					break;
+				case "SETMESSAGES":
+					response = onDisk(() -> setMessages(opInfo, token));
+					break;
+				case "SETRETENTION":
+					response = onDisk(() -> setRetention(opInfo, token));
+					break;
+				case "BEGINUPLOAD":
+					response = done(beginUpload(opInfo, token));
+					break;
+				case "UPLOADCHUNK":
+					response = onDisk(() -> uploadChunk(opInfo, token));
+					break;
+				case "UPLOADSTATUS":
+					response = done(uploadStatus(opInfo, token));
+					break;
+				case "FINISHUPLOAD":
+					response = onDisk(() -> finishUpload(opInfo, token));
+					break;
+				case "READCHUNK":
+					response = done(readChunk(opInfo, token));
+					break;
+				case "READRANGE":
+					response = done(readRange(opInfo, token));
 					break;
 				default:
-					response = new Envelope("FAIL-BADOPERATION");
+					response = done(new Envelope("FAIL-BADOPERATION"));
 					break;
 			}
 
 			// Encrypt the response if server successully extracted session key
-			Envelope renv = MessageServer.suite.encryptEnvelopeAES(response, "ENCRYPTEDSESSION", sk);
-			return renv;
+			final SecretKey key = sk;
+			return response.handle((r, ex) -> {
+				if (ex != null) {
+					ex.printStackTrace(System.out);
+					return new Envelope("ERROR");
+				}
+				if (r instanceof EncodedResponse) { // Already deflated if asked for
+					return MessageServer.suite.encryptBytesAES(((EncodedResponse)r).getEncoded(), "ENCRYPTEDSESSION", key);
+				}
+				return MessageServer.suite.encryptEnvelopeAES(r, "ENCRYPTEDSESSION", key, deflate);
+			});
 		} catch (Exception e) {
 			e.printStackTrace(System.out);
 		}
-		return new Envelope("ERROR");
+		return done(new Envelope("ERROR"));
+	}
+
+	/*
+	 * Subscribes this connection to new messages in the given channels
+	 * Channels that don't exist or that the user can't access are skipped
+	 * Pushes are encrypted with the session key of this request, and deflated if it was
+	 * Response: IDs of the channels subscribed to
+	 */
+	@SuppressWarnings("unchecked")
+	private Envelope subscribe(Envelope e, UserToken token, SecretKey sk, boolean deflate) {
+		if (e.getObjContents().size() < 1) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		ArrayList<Long> channelIds = (ArrayList<Long>) e.getObjContents().get(0);
+		if (channelIds == null) { // Channel ID list is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (token == null) { // Token is null
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		if (subscriber == null) {
+			subscriber = new Subscriber(output, sk, deflate, MessageServer.subscriberQueueSize);
+		}
+		ArrayList<Long> subscribed = new ArrayList<Long>();
+		for (Long id: channelIds) {
+			if (id == null) continue;
+			Channel channel = MessageServer.channelList.getChannel(id);
+			if (channel == null || !inGroup(token, channel.getGroup())) continue;
+			MessageServer.fanOut.subscribe(id, subscriber);
+			subscribed.add(id);
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(subscribed);
+		return response;
+	}
+
+	// Takes a list of channel IDs, or null to unsubscribe from everything
+	@SuppressWarnings("unchecked")
+	private Envelope unsubscribe(Envelope e) {
+		if (e.getObjContents().size() < 1) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		ArrayList<Long> channelIds = (ArrayList<Long>) e.getObjContents().get(0);
+		if (subscriber != null) {
+			if (channelIds == null) {
+				MessageServer.fanOut.unsubscribeAll(subscriber);
+			} else {
+				for (Long id: channelIds) {
+					if (id != null) MessageServer.fanOut.unsubscribe(id, subscriber);
+				}
+			}
+		}
+		return new Envelope("OK");
+	}
+
+	// Formats of texts sent in one piece with SENDMESSAGE or SETMESSAGE
+	private static boolean isTextFormat(Integer format) {
+		return format != null && (format == Message.FORMAT_CBC || format == Message.FORMAT_DEFLATED);
 	}
 
 	public static synchronized boolean inGroup(UserToken token, String group) {
@@ -172,14 +340,20 @@ public class MessageThread extends Thread
 
 			// Generate the response with session key, host token, and host server's public key
 			SecretKey sk = MessageServer.suite.generateKey();
+			// Using IV function for session ID because it's 16 random bytes
+			String sessionId = Base64.getEncoder().encodeToString(MessageServer.suite.generateAesIv());
 			Envelope hostToken = new Envelope("HOSTTOKEN");
 			hostToken.addObject(sk);
+			hostToken.addObject(sessionId);
 			Envelope ht = MessageServer.suite.encryptEnvelopeAES(hostToken, "HOSTTOKEN", MessageServer.masterKey);
 			byte[] encSk = MessageServer.suite.encryptKeyRSA(sk, userPub);
+			MessageServer.sessionTable.put(sessionId, sk);
 			Envelope outer = new Envelope("OK");
 			outer.addObject(MessageServer.publicKey);
 			outer.addObject(encSk);
 			outer.addObject(ht);
+			outer.addObject(sessionId);
+			if (MessageServer.sessionCompression) outer.addObject(Compression.SESSION_DICTIONARY_ID); // Clients with the same dictionary may deflate
 			return outer;
 		} catch (Exception ex) {
 			ex.printStackTrace(System.out);
@@ -191,10 +365,10 @@ public class MessageThread extends Thread
 		if (token == null) { // Token is null
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		ArrayList<Channel> channels = new ArrayList<Channel>();
+		ArrayList<ChannelSummary> channels = new ArrayList<ChannelSummary>();
 		for (Channel c: MessageServer.channelList.getChannels()) {
 			if (inGroup(token, c.getGroup())) {
-					channels.add(c);
+					channels.add(c.getSummary());
 				}
 		}
 		Envelope response = new Envelope("OK");
@@ -224,74 +398,151 @@ public class MessageThread extends Thread
 			return new Envelope("FAIL-CHANNELEXISTS");
 		}
 		Channel channel = MessageServer.channelList.addChannel(group, name, token.getSubject());
+		channel.countReferences(); // Nothing to count yet, but its messages' blobs are counted from now on
 		Envelope response = new Envelope("OK");
-		response.addObject(channel);
+		response.addObject(channel.getSummary());
 		return response;
 	}
 
-	public  static synchronized Envelope deleteChannel(Envelope e, UserToken token) {
+	/*
+	 * Removes the channel and leaves its message files to MessageServer.reclaimer
+	 * The list of files to delete is on disk before the channel is removed, so a crash can't lose track of them
+	 * Blobs are only released, and MessageServer.blobs deletes those no other channel uses
+	 */
+	public static Envelope deleteChannel(Envelope e, UserToken token) {
 		if (e.getObjContents().size() < 1) {
 			return new Envelope("FAIL-BADENVELOPE");
 		}
-		Channel channel = (Channel) e.getObjContents().get(0);
-		if (channel == null) { // Channel is null
+		Long channelId = (Long) e.getObjContents().get(0);
+		if (channelId == null) { // Channel ID is null
 			return new Envelope("FAIL-BADCHANNEL");
 		}
 		if (token == null) { // Token is null
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		Channel server_channel = MessageServer.channelList.getChannel(channel.getGroup(), channel.getName());
-		if (server_channel == null) { // Channel does not exist
+		ArrayList<String> paths = new ArrayList<String>();
+		File list;
+		ChannelArchive archive;
+		synchronized (MessageThread.class) {
+			Channel server_channel = MessageServer.channelList.getChannel(channelId);
+			if (server_channel == null) { // Channel does not exist
+				return new Envelope("FAIL-NOCHANNEL");
+			}
+			if (!token.getSubject().equals(server_channel.getOwner())) { // User is not owner of channel
+				return new Envelope("FAIL-UNAUTHORIZED");
+			}
+			archive = server_channel.getArchive();
+			if (archive == null) { // An archived channel isn't restored just to delete it
+				for (Message m: server_channel.readMessages()) { // Nor loaded
+					paths.add(m.getPath());
+				}
+			}
+			try {
+				list = MessageServer.reclaimer.record(channelId, paths);
+			} catch (IOException ex) {
+				return new Envelope("ERROR-IOEXCEPTION");
+			}
+			server_channel.releaseReferences(); // While the store still has its messages
+			MessageServer.channelList.removeChannel(server_channel.getGroup(), server_channel.getName());
+			MessageServer.fanOut.removeChannel(server_channel.getId());
+			MessageServer.responseCache.removeChannel(server_channel.getId());
+			MessageServer.retention.removeChannel(server_channel.getId());
+		}
+		for (String path: paths) {
+			MessageServer.textCache.invalidate(path);
+		}
+		MessageServer.reclaimer.queue(list, paths.size());
+		if (archive != null) MessageServer.archiver.retire(archive); // Still needed if the channel comes back after a crash
+		Envelope response = new Envelope("OK");
+		return response;
+	}
+
+	/*
+	 * Sets how many messages a channel keeps. Only the channel owner can
+	 * A null or empty policy removes the channel's own limits
+	 * Responds with the policy that is applied, which includes any limits of the group
+	 */
+	public static synchronized Envelope setRetention(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 2) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long channelId = (Long) e.getObjContents().get(0);
+		RetentionPolicy policy = (RetentionPolicy) e.getObjContents().get(1);
+		if (channelId == null) { // Channel ID is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (token == null) { // Token is null
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		Channel channel = MessageServer.channelList.getChannel(channelId);
+		if (channel == null) { // Channel does not exist
 			return new Envelope("FAIL-NOCHANNEL");
 		}
-		if (!token.getSubject().equals(server_channel.getOwner())) { // User is not owner of channel
+		if (!token.getSubject().equals(channel.getOwner())) { // User is not owner of channel
 			return new Envelope("FAIL-UNAUTHORIZED");
 		}
-		// TODO: Check that all message files actually exist
-		for (Message m: server_channel.getMessages()) {
-			File message_file = new File("messages/" + m.getPath());
-				message_file.delete();
+		try {
+			MessageServer.retention.setChannelPolicy(channelId, policy);
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
 		}
-		MessageServer.channelList.removeChannel(server_channel.getGroup(), server_channel.getName());
+		RetentionPolicy applied = MessageServer.retention.getPolicy(channel);
 		Envelope response = new Envelope("OK");
+		response.addObject(applied != null ? applied : new RetentionPolicy(0, 0, 0));
 		return response;
 	}
 
-	public static synchronized Envelope sendMessage(Envelope e, UserToken token) {
+	/*
+	 * Not synchronized, so concurrent senders can share a commit batch in MessageServer.messageStore
+	 * The message is only added to the channel once its file is durable, and acknowledged once the metadata store has it on disk too
+	 * Takes channel ID, text, key index, IV, and optionally Message.FORMAT_DEFLATED if the text was deflated before it was encrypted
+	 */
+	public static Envelope sendMessage(Envelope e, UserToken token) {
 		if (e.getObjContents().size() < 4) {
 			return new Envelope("FAIL-BADENVELOPE");
 		}
-		Channel channel = (Channel) e.getObjContents().get(0);
+		Long channelId = (Long) e.getObjContents().get(0);
 		byte[] tBytes = (byte[]) e.getObjContents().get(1);
 		int keyIndex = (int) e.getObjContents().get(2);
 		byte[] iv = (byte[]) e.getObjContents().get(3);
+		Integer format = e.getObjContents().size() > 4 ? (Integer) e.getObjContents().get(4) : Integer.valueOf(Message.FORMAT_CBC);
 		
-		if (channel == null) {
+		if (channelId == null) {
 			return new Envelope("FAIL-BADCHANNEL");
 		}
 		if (tBytes == null) {
 			return new Envelope("FAIL-BADTEXT");
 		}
+		if (!isTextFormat(format)) {
+			return new Envelope("FAIL-BADFORMAT");
+		}
 		if (token == null) {
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		Channel server_channel = MessageServer.channelList.getChannel(channel.getGroup(), channel.getName());
+		Channel server_channel = MessageServer.channelList.getChannel(channelId);
 		if (server_channel == null) {
 			return new Envelope("FAIL-NOCHANNEL");
 		}
 		if (!inGroup(token, server_channel.getGroup())) {
 			return new Envelope("FAIL-UNAUTHORIZED");
 		}
-		File messages_dir = new File("messages");
 		try {
-			File message_file = File.createTempFile(MESSAGE_FILE_PREFIX, MESSAGE_FILE_SUFFIX, messages_dir);
-			if (tBytes.length > MAX_MESSAGE_BYTES) { // Message text is too long
+			if (tBytes.length > MAX_MESSAGE_BYTES) { // Message text is too long, send it with BEGINUPLOAD instead
+				return new Envelope("FAIL-TEXTTOOLONG");
+			}
+			File message_file = MessageServer.blobs.write(tBytes); // A retried send reuses the file of the first one
+			Message message = new Message(token.getSubject(), server_channel.getGroup(), server_channel.getName(), message_file.getName(), keyIndex, iv, tBytes.length);
+			message.setFormat(format);
+			synchronized (MessageThread.class) { // Same lock as deleteChannel
+				if (MessageServer.channelList.getChannel(channelId) != server_channel) { // Channel was deleted meanwhile, the unused blob is collected
+					return new Envelope("FAIL-NOCHANNEL");
+				}
+				server_channel.addMessage(message);
 			}
-			FileOutputStream file_out = new FileOutputStream(message_file);
-			file_out.write(tBytes);
-			file_out.close();
-			Message message = new Message(token.getSubject(), channel.getGroup(), channel.getName(), message_file.getName(), keyIndex, iv, tBytes.length);
-			server_channel.addMessage(message);
+			MessageServer.metadataStore.sync(); // Not acknowledged, or shown to anyone, before it would survive a crash
+			MessageServer.textCache.put(message.getPath(), ByteBuffer.wrap(tBytes), MessageServer.textCache.getGeneration()); // New messages are the ones about to be read
+			MessageServer.channelWaiters.wake(server_channel.getId());
+			MessageServer.fanOut.publish(server_channel.getId(), new MessageAndText(message, tBytes));
 			Envelope response = new Envelope("OK");
 			response.addObject(message);
 			return response;
@@ -300,141 +551,683 @@ public class MessageThread extends Thread
 		}
 	}
 
-	public static synchronized Envelope deleteMessage(Envelope e, UserToken token) {
+	/*
+	 * Starts an upload of a message too long for SENDMESSAGE. The client sends it with UPLOADCHUNK and adds it with FINISHUPLOAD
+	 * Takes channel ID, length, key index and IV of the encrypted message, and optionally its Message format
+	 * and the sequence number of one of the user's messages to replace instead, under a newer group key
+	 * Response: upload ID and the size of every chunk but the last
+	 */
+	public static Envelope beginUpload(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 4) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long channelId = (Long) e.getObjContents().get(0);
+		Long length = (Long) e.getObjContents().get(1);
+		Integer keyIndex = (Integer) e.getObjContents().get(2);
+		byte[] iv = (byte[]) e.getObjContents().get(3);
+		Integer format = e.getObjContents().size() > 4 ? (Integer) e.getObjContents().get(4) : Integer.valueOf(Message.FORMAT_CBC); // Older clients only send CBC
+		Long replaces = e.getObjContents().size() > 5 ? (Long) e.getObjContents().get(5) : null;
+		if (channelId == null) {
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (length == null || length <= 0 || keyIndex == null) {
+			return new Envelope("FAIL-BADUPLOAD");
+		}
+		if (format == null || (format != Message.FORMAT_CBC && format != Message.FORMAT_SEGMENTED)) {
+			return new Envelope("FAIL-BADFORMAT");
+		}
+		if (token == null) {
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		if (length > MessageServer.uploads.getMaxBytes()) {
+			return new Envelope("FAIL-TEXTTOOLONG");
+		}
+		Channel server_channel = MessageServer.channelList.getChannel(channelId);
+		if (server_channel == null) {
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		if (!inGroup(token, server_channel.getGroup())) {
+			return new Envelope("FAIL-UNAUTHORIZED");
+		}
+		if (replaces != null) {
+			Envelope refused = checkReplace(server_channel, replaces, keyIndex, token);
+			if (refused != null) return refused;
+		}
+		String uploadId;
+		try {
+			uploadId = MessageServer.uploads.begin(token.getSubject(), channelId, length, keyIndex, iv, format, replaces == null ? 0 : replaces);
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+		if (uploadId == null) { // Too many uploads in progress
+			return new Envelope("FAIL-BUSY");
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(uploadId);
+		response.addObject(MessageServer.uploads.getChunkSize());
+		return response;
+	}
+
+	/*
+	 * Takes upload ID, chunk number, chunk and the SHA-256 of the chunk
+	 * A chunk that doesn't match its hash is refused, and can simply be sent again
+	 */
+	public static Envelope uploadChunk(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 4) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		String uploadId = (String) e.getObjContents().get(0);
+		Integer index = (Integer) e.getObjContents().get(1);
+		byte[] chunk = (byte[]) e.getObjContents().get(2);
+		byte[] hash = (byte[]) e.getObjContents().get(3);
+		if (index == null || chunk == null || hash == null) {
+			return new Envelope("FAIL-BADCHUNK");
+		}
+		if (token == null) {
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		UploadTable.Upload upload = uploadId == null ? null : MessageServer.uploads.get(uploadId, token.getSubject());
+		if (upload == null) { // Unknown, expired or someone else's
+			return new Envelope("FAIL-NOUPLOAD");
+		}
+		if (!MessageDigest.isEqual(hash, MessageServer.suite.hashChunk(chunk, 0, chunk.length))) {
+			return new Envelope("FAIL-BADHASH");
+		}
+		try {
+			if (!upload.write(index, chunk)) {
+				return new Envelope("FAIL-BADCHUNK");
+			}
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+		return new Envelope("OK");
+	}
+
+	// Response: numbers of the chunks of an upload the server doesn't have yet, in order
+	public static Envelope uploadStatus(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 1) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		String uploadId = (String) e.getObjContents().get(0);
+		if (token == null) {
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		UploadTable.Upload upload = uploadId == null ? null : MessageServer.uploads.get(uploadId, token.getSubject());
+		if (upload == null) {
+			return new Envelope("FAIL-NOUPLOAD");
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(upload.getMissing());
+		return response;
+	}
+
+	/*
+	 * Adds an uploaded message to its channel once every chunk has arrived
+	 * The part file is moved into the message store as a blob, so the message is only read once to hash it and never held in memory
+	 * Response: the new message, like SENDMESSAGE, or the replaced one for an upload that replaces a message
+	 */
+	public static Envelope finishUpload(Envelope e, UserToken token) {
 		if (e.getObjContents().size() < 1) {
 			return new Envelope("FAIL-BADENVELOPE");
 		}
-		Message message = (Message) e.getObjContents().get(0);
-		if (message == null) { // Message is null
+		String uploadId = (String) e.getObjContents().get(0);
+		if (token == null) {
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		UploadTable.Upload upload = uploadId == null ? null : MessageServer.uploads.get(uploadId, token.getSubject());
+		if (upload == null) {
+			return new Envelope("FAIL-NOUPLOAD");
+		}
+		if (!upload.isComplete()) {
+			return new Envelope("FAIL-MISSINGCHUNKS");
+		}
+		if (!MessageServer.uploads.remove(upload)) { // Finished by another request meanwhile
+			return new Envelope("FAIL-NOUPLOAD");
+		}
+		Channel server_channel = MessageServer.channelList.getChannel(upload.getChannelId());
+		if (server_channel == null) {
+			upload.getPart().delete();
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		if (upload.getReplaces() != 0) return finishReplace(upload, server_channel, token);
+		try {
+			File message_file = MessageServer.blobs.adopt(upload.getPart());
+			Message message = new Message(token.getSubject(), server_channel.getGroup(), server_channel.getName(), message_file.getName(), upload.getKeyIndex(), upload.getIv(), (int)upload.getLength());
+			message.setFormat(upload.getFormat());
+			synchronized (MessageThread.class) { // Same lock as deleteChannel
+				if (MessageServer.channelList.getChannel(server_channel.getId()) != server_channel) { // Channel was deleted meanwhile, the unused blob is collected
+					return new Envelope("FAIL-NOCHANNEL");
+				}
+				server_channel.addMessage(message);
+			}
+			MessageServer.metadataStore.sync(); // Not acknowledged, or shown to anyone, before it would survive a crash
+			MessageServer.channelWaiters.wake(server_channel.getId());
+			MessageServer.fanOut.publish(server_channel.getId(), new MessageAndText(message, (byte[])null));
+			Envelope response = new Envelope("OK");
+			response.addObject(message);
+			return response;
+		} catch (IOException ex) {
+			upload.getPart().delete();
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+	}
+
+	// Null if the user may replace the text of message seq with one under group key keyIndex, otherwise the refusal
+	private static Envelope checkReplace(Channel channel, long seq, int keyIndex, UserToken token) {
+		Message m = channel.getMessage(seq);
+		if (m == null) { // No message with that sequence number
+			return new Envelope("FAIL-BADPATH");
+		}
+		if (!m.getOwner().equals(token.getSubject())) { // User is not message owner
+			return new Envelope("FAIL-UNAUTHORIZEDMESSAGE");
+		}
+		if (keyIndex <= m.getKeyIndex()) { // Re-encryption has to move to a newer key
+			return new Envelope("FAIL-STALEKEY");
+		}
+		return null;
+	}
+
+	/*
+	 * Points the message an upload replaces at the uploaded file, like updateMessage does for short texts
+	 * The checks from BEGINUPLOAD are made again, since the message may have changed during the upload
+	 */
+	private static Envelope finishReplace(UploadTable.Upload upload, Channel server_channel, UserToken token) {
+		try {
+			File message_file = MessageServer.blobs.adopt(upload.getPart());
+			Message m;
+			File list = null;
+			synchronized (MessageThread.class) { // Same lock as the message handlers
+				if (MessageServer.channelList.getChannel(server_channel.getId()) != server_channel) { // Channel was deleted meanwhile, the unused blob is collected
+					return new Envelope("FAIL-NOCHANNEL");
+				}
+				Envelope refused = checkReplace(server_channel, upload.getReplaces(), upload.getKeyIndex(), token);
+				if (refused != null) return refused;
+				m = server_channel.getMessage(upload.getReplaces());
+				String old_path = m.getPath();
+				if (!BlobStore.isBlob(old_path)) { // Files from before blobs belong to this message alone
+					list = MessageServer.reclaimer.record(server_channel.getId(), List.of(old_path)); // Deleted once a checkpoint has the new path
+				}
+				m.setKeyIndex(upload.getKeyIndex());
+				m.setIv(upload.getIv());
+				m.setLength((int)upload.getLength());
+				m.setFormat(upload.getFormat());
+				server_channel.replacePath(m, message_file.getName());
+				MessageServer.textCache.invalidate(old_path);
+			}
+			MessageServer.metadataStore.sync();
+			if (list != null) MessageServer.reclaimer.queue(list, 1);
+			Envelope response = new Envelope("OK");
+			response.addObject(m);
+			return response;
+		} catch (IOException ex) {
+			upload.getPart().delete();
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+	}
+
+	/*
+	 * Reads one chunk of a message, so long ones can be downloaded a piece at a time and picked up again after a failure
+	 * Takes channel ID, sequence number and chunk number
+	 * Response: the chunk, its SHA-256, and the chunk size
+	 */
+	public static Envelope readChunk(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 3) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Integer index = (Integer) e.getObjContents().get(2);
+		int chunkSize = MessageServer.uploads.getChunkSize();
+		long offset = index == null ? -1 : (long)index * chunkSize;
+		Envelope response = readRange(e, token, offset, chunkSize);
+		if (!response.getMessage().equals("OK")) return response;
+		byte[] chunk = (byte[]) response.getObjContents().get(0);
+		response.addObject(MessageServer.suite.hashChunk(chunk, 0, chunk.length));
+		response.addObject(chunkSize);
+		return response;
+	}
+
+	/*
+	 * Reads any part of a message, for clients that only need some segments of a Message.FORMAT_SEGMENTED message
+	 * Takes channel ID, sequence number, offset and length, which is capped at the chunk size
+	 * Response: the bytes, fewer than asked for if the message ends first
+	 */
+	public static Envelope readRange(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 4) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long offset = (Long) e.getObjContents().get(2);
+		Integer length = (Integer) e.getObjContents().get(3);
+		if (offset == null || length == null || length < 0) {
+			return new Envelope("FAIL-BADRANGE");
+		}
+		return readRange(e, token, offset, Math.min(length, MessageServer.uploads.getChunkSize()));
+	}
+
+	// Checks access to the message named by the first two objects of e and reads length bytes of it from offset on
+	private static Envelope readRange(Envelope e, UserToken token, long offset, int length) {
+		Long channelId = (Long) e.getObjContents().get(0);
+		Long seq = (Long) e.getObjContents().get(1);
+		if (channelId == null) {
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (seq == null) {
+			return new Envelope("FAIL-BADMESSAGE");
+		}
+		if (token == null) {
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		Channel channel = MessageServer.channelList.getChannel(channelId);
+		if (channel == null) {
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		if (!inGroup(token, channel.getGroup())) {
+			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
+		}
+		Message m = channel.getMessage(seq);
+		if (m == null) {
+			return new Envelope("FAIL-BADPATH");
+		}
+		if (offset < 0 || (offset >= m.getLength() && offset > 0)) {
+			return new Envelope("FAIL-BADRANGE");
+		}
+		byte[] bytes = new byte[(int)Math.min(length, m.getLength() - offset)];
+		try {
+			FileChannel file_in = FileChannel.open(MessageServer.messageStore.fileFor(m.getPath()).toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(bytes);
+				while (buf.hasRemaining()) {
+					if (file_in.read(buf, offset + buf.position()) < 0) throw new EOFException("Message file is shorter than the message");
+				}
+			} finally {
+				file_in.close();
+			}
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(bytes);
+		return response;
+	}
+
+	public static synchronized Envelope deleteMessage(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 2) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long channelId = (Long) e.getObjContents().get(0);
+		Long seq = (Long) e.getObjContents().get(1);
+		if (channelId == null) { // Channel ID is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (seq == null) { // Sequence number is null
 			return new Envelope("FAIL-BADMESSAGE");
 		}
 		if (token == null) { // Token is null
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		Channel channel = MessageServer.channelList.getChannel(message.getGroup(), message.getChannel());
+		Channel channel = MessageServer.channelList.getChannel(channelId);
 		if (channel == null) { // Channel does not exist
 			return new Envelope("FAIL-NOCHANNEL");
 		}
 		if (!inGroup(token, channel.getGroup())) { // User doesn't have access to channel
 			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
 		}
-		Envelope response = new Envelope("FAIL-BADPATH"); // Message path does not correspond to actual message
-		ArrayList<Message> messages = channel.getMessages(); 
-		for (int i = 0; i < messages.size(); i++) {
-			if (!messages.get(i).getOwner().equals(token.getSubject())) { // User is not message owner
-					response = new Envelope("FAIL-UNAUTHORIZEDMESSAGE");
-			} else {
-				if (messages.get(i).compareTo(message) == 0) {
-					File message_file = new File("messages/" + message.getPath());
-					if (!message_file.exists()) { // Message file does not exist
-						response = new Envelope("ERROR-BADPATH");
-					} else {
-						message_file.delete();
-						channel.removeMessage(i);
-						response = new Envelope("OK");
-						break;
-					}
-				}
+		Message message = channel.getMessage(seq);
+		if (message == null) { // No message with that sequence number
+			return new Envelope("FAIL-BADPATH");
+		}
+		if (!message.getOwner().equals(token.getSubject())) { // User is not message owner
+			return new Envelope("FAIL-UNAUTHORIZEDMESSAGE");
+		}
+		File message_file = MessageServer.messageStore.fileFor(message.getPath());
+		if (!message_file.exists()) { // Message file does not exist
+			return new Envelope("ERROR-BADPATH");
+		}
+		File list = null;
+		if (!BlobStore.isBlob(message.getPath())) { // Blobs may be shared, and are collected once nothing uses them
+			try {
+				list = MessageServer.reclaimer.record(channelId, List.of(message.getPath())); // Deleted once a checkpoint has the removal
+			} catch (IOException ex) {
+				return new Envelope("ERROR-IOEXCEPTION");
 			}
 		}
-		return response;
+		MessageServer.textCache.invalidate(message.getPath());
+		channel.removeMessage(seq);
+		if (list != null) MessageServer.reclaimer.queue(list, 1);
+		return new Envelope("OK");
 	}
 
 	public static synchronized Envelope setMessage(Envelope e, UserToken token) {
-		if (e.getObjContents().size() < 4) {
+		if (e.getObjContents().size() < 5) {
 			return new Envelope("FAIL-BADENVELOPE");
 		}
-		Message message = (Message)e.getObjContents().get(0);
-		byte[] tBytes = (byte[])e.getObjContents().get(1);
-		int keyIndex = (int)e.getObjContents().get(2);
-		byte[] iv = (byte[])e.getObjContents().get(3);
-		if (message == null) { // Message is null
+		Long channelId = (Long)e.getObjContents().get(0);
+		Long seq = (Long)e.getObjContents().get(1);
+		byte[] tBytes = (byte[])e.getObjContents().get(2);
+		int keyIndex = (int)e.getObjContents().get(3);
+		byte[] iv = (byte[])e.getObjContents().get(4);
+		if (channelId == null) { // Channel ID is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (seq == null) { // Sequence number is null
 			return new Envelope("FAIL-BADMESSAGE");
 		}
+		Integer format = e.getObjContents().size() > 5 ? (Integer) e.getObjContents().get(5) : Integer.valueOf(Message.FORMAT_CBC);
+		Envelope response = updateMessage(channelId, seq, tBytes, keyIndex, iv, format, token, false);
+		if (!response.getMessage().equals("OK")) return response;
+		try {
+			MessageServer.metadataStore.sync();
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+		return response;
+	}
+
+	// Batched SETMESSAGE used by clients re-encrypting old messages under the latest group key
+	// Responds with one status per update, in the same order
+	@SuppressWarnings("unchecked")
+	public static synchronized Envelope setMessages(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 1) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		ArrayList<MessageUpdate> updates = (ArrayList<MessageUpdate>)e.getObjContents().get(0);
+		if (updates == null) { // Update list is null
+			return new Envelope("FAIL-BADUPDATES");
+		}
+		if (token == null) { // Token is null
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		ArrayList<String> statuses = new ArrayList<String>();
+		for (MessageUpdate u: updates) {
+			if (u == null) {
+				statuses.add("FAIL-BADUPDATE");
+				continue;
+			}
+			if (u.getMessage() == null) {
+				statuses.add("FAIL-BADMESSAGE");
+				continue;
+			}
+			Message m = u.getMessage();
+			statuses.add(updateMessage(m.getChannelId(), m.getSeq(), u.getText(), u.getKeyIndex(), u.getIv(), u.getFormat(), token, true).getMessage());
+		}
+		try {
+			MessageServer.metadataStore.sync(); // Once for the whole batch
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(statuses);
+		return response;
+	}
+
+	/*
+	 * Replaces the stored text of a message
+	 * Only the message owner can do this
+	 * When reencrypt is set, the new text has to be under a newer group key than the old one
+	 */
+	private static Envelope updateMessage(long channelId, long seq, byte[] tBytes, int keyIndex, byte[] iv, Integer format, UserToken token, boolean reencrypt) {
 		if (tBytes == null) { // Text is null
 			return new Envelope("FAIL-BADTEXT");
+		} if (!isTextFormat(format)) { // Only texts sent in one piece can be replaced
+			return new Envelope("FAIL-BADFORMAT");
 		} if (token == null) { // Token is null
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		Channel channel = MessageServer.channelList.getChannel(message.getGroup(), message.getChannel());
+		Channel channel = MessageServer.channelList.getChannel(channelId);
 		if (channel == null) { // Channel doesn't exist
 			return new Envelope("FAIL-NOCHANNEL");
 		}
 		if (!inGroup(token, channel.getGroup())) { // User doesn't have access to channel
 			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
 		}
-		Envelope response = new Envelope("FAIL-BADPATH"); // Message path doesnot correspond to actual message
-		ArrayList<Message> messages = channel.getMessages();
-		// TODO: Refactor below for better control flow
-		for (Message m: messages) {
-			if (message.compareTo(m) == 0) {
-				if (!m.getOwner().equals(token.getSubject())) { // User is not message owner
-					response = new Envelope("FAIL-UNAUTHORIZEDMESSAGE");
-				} else {
-					File message_file = new File("messages/" + m.getPath());
-					if (!message_file.exists()) { // Message file does not exist
-						response = new Envelope("ERROR-BADPATH");
-					} else {
-						if (tBytes.length > MAX_MESSAGE_BYTES) { // Message is too long
-							response = new Envelope("FAIL-TEXTTOOLONG");
-						} else {
-							try {
-							FileOutputStream file_out = new FileOutputStream(message_file);
-							file_out.write(tBytes);
-							file_out.close();
-							m.setKeyIndex(keyIndex);
-							m.setIv(iv);
-							m.setLength(tBytes.length);
-							} catch (IOException ex) {
-								return new Envelope("ERROR-IOEXCEPTION");
-							}
-							response = new Envelope("OK");
-						}
-					}
-					break;
-				}
+		Message m = channel.getMessage(seq);
+		if (m == null) { // No message with that sequence number
+			return new Envelope("FAIL-BADPATH");
+		}
+		if (!m.getOwner().equals(token.getSubject())) { // User is not message owner
+			return new Envelope("FAIL-UNAUTHORIZEDMESSAGE");
+		}
+		if (reencrypt && keyIndex <= m.getKeyIndex()) { // Re-encryption has to move to a newer key
+			return new Envelope("FAIL-STALEKEY");
+		}
+		File message_file = MessageServer.messageStore.fileFor(m.getPath());
+		if (!message_file.exists()) { // Message file does not exist
+			return new Envelope("ERROR-BADPATH");
+		}
+		if (tBytes.length > MAX_MESSAGE_BYTES) { // Message is too long
+			return new Envelope("FAIL-TEXTTOOLONG");
+		}
+		try {
+			File new_file = MessageServer.blobs.write(tBytes);
+			String old_path = m.getPath();
+			File list = null;
+			if (!BlobStore.isBlob(old_path)) { // Files from before blobs belong to this message alone
+				list = MessageServer.reclaimer.record(channelId, List.of(old_path)); // Deleted once a checkpoint has the new path
 			}
+			m.setKeyIndex(keyIndex);
+			m.setIv(iv);
+			m.setLength(tBytes.length);
+			m.setFormat(format);
+			channel.replacePath(m, new_file.getName());
+			MessageServer.textCache.invalidate(old_path);
+			if (list != null) MessageServer.reclaimer.queue(list, 1);
+		} catch (IOException ex) {
+			return new Envelope("ERROR-IOEXCEPTION");
 		}
-		return response;
+		return new Envelope("OK");
 	}
 
-	public static synchronized Envelope readMessages(Envelope e, UserToken token) {
-		if (e.getObjContents().size() < 1) {
+	/*
+	 * Returns messages in a channel that are still encrypted under a key older than latestKeyIndex
+	 * Only includes messages the requester could re-encrypt, meaning their own
+	 * Returns at most limit messages, starting at sequence number start
+	 * Response: stale messages, sequence number to continue from (-1 at the end), and lowest key index still used in the channel
+	 */
+	public static synchronized Envelope readStaleMessages(Envelope e, UserToken token) {
+		if (e.getObjContents().size() < 4) {
 			return new Envelope("FAIL-BADENVELOPE");
 		}
-		Channel channel = (Channel) e.getObjContents().get(0);
-		if (channel == null) { // Channel is null
+		Long channelId = (Long) e.getObjContents().get(0);
+		int latestKeyIndex = (int) e.getObjContents().get(1);
+		long start = (long) e.getObjContents().get(2);
+		int limit = (int) e.getObjContents().get(3);
+		if (channelId == null) { // Channel ID is null
 			return new Envelope("FAIL-BADCHANNEL");
 		}
 		if (token == null) { // Token is null
 			return new Envelope("FAIL-BADTOKEN");
 		}
-		Channel server_channel = MessageServer.channelList.getChannel(channel.getGroup(), channel.getName());
+		Channel server_channel = MessageServer.channelList.getChannel(channelId);
 		if (server_channel == null) { // Channel does not exist
 			return new Envelope("FAIL-NOCHANNEL");
 		}
 		if (!inGroup(token, server_channel.getGroup())) { // User doesn't have access to channel
 			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
 		}
-		// TODO: Check that all message files actually exist
+		ArrayList<Message> all = server_channel.getMessages();
+		int minKeyIndex = latestKeyIndex;
+		for (Message m: all) {
+			minKeyIndex = Math.min(minKeyIndex, m.getKeyIndex());
+		}
 		try {
-		ArrayList<MessageAndText> messages = new ArrayList<MessageAndText>();
-			for (Message m: server_channel.getMessages()) {
-				File message_file = new File("messages/" + m.getPath());
-				FileInputStream file_in = new FileInputStream(message_file);
-				byte[] buf = new byte[m.getLength()];
-				file_in.read(buf);
-				file_in.close();
-				messages.add(new MessageAndText(m, buf));
+			ArrayList<Message> stale = new ArrayList<Message>();
+			long next = -1;
+			for (Message m: server_channel.getMessages(start, Integer.MAX_VALUE)) {
+				if (stale.size() >= limit) {
+					next = m.getSeq();
+					break;
+				}
+				if (m.getKeyIndex() >= latestKeyIndex) continue;
+				if (!m.getOwner().equals(token.getSubject())) continue;
+				stale.add(m);
 			}
+			ArrayList<MessageAndText> messages = readTexts(stale);
 			Envelope response = new Envelope("OK");
 			response.addObject(messages);
+			response.addObject(next);
+			response.addObject(minKeyIndex);
 			return response;
 		} catch (IOException ex) {
 			return new Envelope ("ERROR-IOEXCEPTION");
 		}
 	}
 
+	/*
+	 * Reads a channel's messages with their text
+	 * Optionally takes a sequence number to start at and a most number of messages to return
+	 * Response: messages in sequence order, and sequence number to continue from (-1 at the end)
+	 */
+	public static synchronized Envelope readMessages(Envelope e, UserToken token, boolean deflate) {
+		if (e.getObjContents().size() < 1) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long channelId = (Long) e.getObjContents().get(0);
+		long fromSeq = 0;
+		int limit = Integer.MAX_VALUE;
+		if (e.getObjContents().size() > 2) {
+			fromSeq = (long) e.getObjContents().get(1);
+			limit = (int) e.getObjContents().get(2);
+		}
+		if (channelId == null) { // Channel ID is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (token == null) { // Token is null
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		Channel server_channel = MessageServer.channelList.getChannel(channelId);
+		if (server_channel == null) { // Channel does not exist
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		if (!inGroup(token, server_channel.getGroup())) { // User doesn't have access to channel
+			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
+		}
+		// TODO: Check that all message files actually exist
+		try {
+			return readPage(server_channel, fromSeq, limit, deflate);
+		} catch (IOException ex) {
+			return new Envelope ("ERROR-IOEXCEPTION");
+		}
+	}
+
+	/*
+	 * Blocks until the channel has messages after sequence number afterSeq, or until the timeout passes
+	 * Not synchronized like the other operations, so a waiting client doesn't hold up everyone else
+	 * Response: new messages in sequence order (empty on timeout), and sequence number to continue from (-1 at the end)
+	 */
+	public static Envelope waitMessages(Envelope e, UserToken token, boolean deflate) {
+		if (e.getObjContents().size() < 4) {
+			return new Envelope("FAIL-BADENVELOPE");
+		}
+		Long channelId = (Long) e.getObjContents().get(0);
+		long afterSeq = (long) e.getObjContents().get(1);
+		long timeout = Math.min((long) e.getObjContents().get(2), MAX_WAIT_MILLIS);
+		int limit = (int) e.getObjContents().get(3);
+		if (channelId == null) { // Channel ID is null
+			return new Envelope("FAIL-BADCHANNEL");
+		}
+		if (token == null) { // Token is null
+			return new Envelope("FAIL-BADTOKEN");
+		}
+		Channel server_channel = MessageServer.channelList.getChannel(channelId);
+		if (server_channel == null) { // Channel does not exist
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		if (!inGroup(token, server_channel.getGroup())) { // User doesn't have access to channel
+			return new Envelope("FAIL-UNAUTHORIZEDCHANNEL");
+		}
+		try {
+			MessageServer.channelWaiters.await(server_channel, afterSeq, timeout);
+		} catch (InterruptedException ex) {
+			return new Envelope("ERROR-INTERRUPTED");
+		}
+		if (MessageServer.channelList.getChannel(channelId) != server_channel) { // Channel was deleted while waiting
+			return new Envelope("FAIL-NOCHANNEL");
+		}
+		try {
+			return readPage(server_channel, afterSeq + 1, limit, deflate);
+		} catch (IOException ex) {
+			return new Envelope ("ERROR-IOEXCEPTION");
+		}
+	}
+
+	/*
+	 * OK response with up to limit messages from fromSeq on, and the sequence number to continue from (-1 at the end)
+	 * The serialized response is cached for the channel's version, so while the channel doesn't change
+	 * only the session encryption runs again for each reader
+	 * The version is taken before the messages are, so a response that raced with a change is never served for the newer version
+	 * Deflated responses are cached apart from plain ones, so sessions that deflate don't compress the page again either
+	 */
+	private static Envelope readPage(Channel channel, long fromSeq, int limit, boolean deflate) throws IOException {
+		long version = channel.getVersion();
+		String page = fromSeq + ":" + limit + (deflate ? ":deflate" : "");
+		byte[] cached = MessageServer.responseCache.get(channel.getId(), version, page);
+		if (cached != null) return new EncodedResponse(cached);
+		ArrayList<Message> range = channel.getMessages(fromSeq, limit == Integer.MAX_VALUE ? limit : limit + 1);
+		long next = -1;
+		if (range.size() > limit) { // Asked for one extra to see if there are more
+			next = range.remove(limit).getSeq();
+		}
+		Envelope response = new Envelope("OK");
+		response.addObject(readTexts(range));
+		response.addObject(next);
+		byte[] encoded = MessageServer.suite.encodeEnvelope(response, deflate);
+		if (encoded == null) return response;
+		MessageServer.responseCache.put(channel.getId(), version, page, encoded);
+		return new EncodedResponse(encoded);
+	}
+
+	// Texts longer than MAX_MESSAGE_BYTES are only read a chunk at a time by readRange, so this always reads into the heap
+	private static ByteBuffer readText(Message m) throws IOException {
+		if (m.getLength() > MAX_MESSAGE_BYTES) return null; // Uploaded in chunks, and downloaded with READCHUNK
+		ByteBuffer cached = MessageServer.textCache.get(m.getPath());
+		if (cached != null) return cached;
+		long generation = MessageServer.textCache.getGeneration();
+		File message_file = MessageServer.messageStore.fileFor(m.getPath());
+		FileChannel file_in = FileChannel.open(message_file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(m.getLength());
+			while (buf.hasRemaining()) { // A single read can come back short
+				if (file_in.read(buf) < 0) throw new EOFException("Message file is shorter than the message");
+			}
+			buf.flip();
+			MessageServer.textCache.put(m.getPath(), buf, generation);
+			return buf;
+		} finally {
+			file_in.close();
+		}
+	}
+
+	/*
+	 * Reads the text of a page of messages, in the same order
+	 * The files are read at the same time on MessageServer.readExecutor, since each one costs a round trip on slow disks
+	 */
+	private static ArrayList<MessageAndText> readTexts(List<Message> page) throws IOException {
+		ArrayList<MessageAndText> texts = new ArrayList<MessageAndText>();
+		if (page.size() < 2) {
+			for (Message m: page) {
+				texts.add(new MessageAndText(m, readText(m)));
+			}
+			return texts;
+		}
+		ArrayList<Future<ByteBuffer>> reads = new ArrayList<Future<ByteBuffer>>();
+		for (Message m: page) {
+			reads.add(MessageServer.readExecutor.submit(() -> readText(m)));
+		}
+		try {
+			for (int i = 0; i < page.size(); i++) {
+				texts.add(new MessageAndText(page.get(i), reads.get(i).get()));
+			}
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted reading messages");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) throw (IOException)ex.getCause();
+			throw new IOException(ex.getCause());
+		} finally {
+			for (Future<ByteBuffer> f: reads) {
+				f.cancel(false);
+			}
+		}
+		return texts;
+	}
+
 	public static Envelope decryptHostToken(Envelope ht) {
 		try {
 			byte[] encHt = (byte[]) ht.getObjContents().get(0);
@@ -0,0 +1,47 @@
+/*
+ * Used specifically for the setMessages method
+ * Holds new ciphertext for a message along with the group key index and IV it was encrypted with,
+ * and its Message format. Updates from clients that don't send one are Message.FORMAT_CBC
+ */
+
+public class MessageUpdate implements java.io.Serializable {
+
+    private static final long serialVersionUID = 5L;
+    private Message message;
+    private byte[] text;
+    private int keyIndex;
+    private byte[] iv;
+    private int format;
+
+    public MessageUpdate(Message _message, byte[] _text, int _keyIndex, byte[] _iv) {
+        this(_message, _text, _keyIndex, _iv, Message.FORMAT_CBC);
+    }
+
+    public MessageUpdate(Message _message, byte[] _text, int _keyIndex, byte[] _iv, int _format) {
+        message = _message;
+        text = _text;
+        keyIndex = _keyIndex;
+        iv = _iv;
+        format = _format;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public byte[] getText() {
+        return text;
+    }
+
+    public int getKeyIndex() {
+        return keyIndex;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+}
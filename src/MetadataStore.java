@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * Where the host server keeps channel and message metadata
+ * ChannelList and Channel call into the store whenever channels or messages change,
+ * and a channel asks the store for its messages the first time they are needed
+ * SnapshotMetadataStore keeps everything in heap and saves it to ChannelList.bin, journaling changes in between
+ * LsmMetadataStore writes every change through to an on-disk LsmStore, so channels can be evicted from heap
+ * Pick one with MessageServer.metadataStoreType
+ */
+
+interface MetadataStore {
+    // Reads the channel directory. Messages are loaded later by loadMessages
+    ChannelList load() throws IOException;
+
+    ArrayList<Message> loadMessages(Channel channel) throws IOException;
+
+    // Reads the stored messages of a channel that isn't loaded, without counting it as loaded. For background scans
+    ArrayList<Message> readMessages(Channel channel) throws IOException;
+
+    void addChannel(Channel channel);
+
+    void removeChannel(Channel channel);
+
+    // Adds a message or saves changes to one already in the channel
+    void putMessage(Channel channel, Message message);
+
+    void removeMessage(Channel channel, Message message);
+
+    // Tells the store a channel was used, for deciding what to evict
+    void touch(Channel channel);
+
+    // Returns once every change passed to the store so far would survive a crash. Called before a change is acknowledged
+    void sync() throws IOException;
+
+    // Saves anything that isn't already on disk
+    void checkpoint(ChannelList channelList) throws IOException;
+
+    void close();
+}
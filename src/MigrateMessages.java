@@ -0,0 +1,47 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+
+/*
+ * Moves message files saved directly in the messages directory into the sharded layout MessageStore uses
+ * Run it in the host server's directory while the server is stopped: java MigrateMessages [messages directory]
+ * Safe to run again after an interruption, since files already moved are no longer in the top directory
+ */
+
+public class MigrateMessages {
+
+    public static void main(String[] args) {
+        File dir = new File(args.length > 0 ? args[0] : "messages");
+        File[] files = dir.listFiles();
+        if (files == null) {
+            System.out.println("Could not list " + dir);
+            return;
+        }
+        LinkedHashSet<File> changed = new LinkedHashSet<File>();
+        int moved = 0;
+        for (File f: files) {
+            if (!f.isFile()) continue;
+            File shard = MessageStore.shardOf(dir, f.getName());
+            if (!shard.isDirectory()) {
+                shard.mkdirs();
+                changed.add(shard.getParentFile());
+            }
+            try {
+                Files.move(f.toPath(), new File(shard, f.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Could not move " + f + ": " + e.getMessage());
+                continue;
+            }
+            changed.add(shard);
+            moved++;
+            if (moved % 10000 == 0) System.out.printf("Moved %d message files\n", moved);
+        }
+        changed.add(dir);
+        for (File d: changed) {
+            MessageStore.syncDir(d);
+        }
+        System.out.printf("Moved %d message files into %s\n", moved, dir);
+    }
+}
@@ -1,9 +1,11 @@
 import java.util.Scanner;
 import java.util.List;
+import java.util.ArrayList;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -27,6 +29,10 @@ public class MyClientApp {
     private static String publicKeyFile = "ClientPublic.bin";
     private static String privateKeyFile = "ClientPrivate.bin";
     private static String masterKeyFile = "ClientMaster.bin";
+    private static int REENCRYPT_BATCH_SIZE = 50;
+    private static long WAIT_MILLIS = 30000; // How long to wait for new messages
+    public static String keyCacheFile = "GroupKeyCache.bin";
+    private static boolean compressText = Boolean.getBoolean("messageclient.compresstext"); // Deflate message texts before encrypting them
 
     private PublicKey publicKey;
     private PrivateKey privateKey;
@@ -41,7 +47,11 @@ public class MyClientApp {
     private MessageClient msgClient = null;
     private UserToken token = null;
     private GroupKeyMap keyMap = null;
-    private Channel channel = null;
+    private boolean keysSynced = false; // Whether keyMap has been checked against the authentication server
+    private String username = null;
+    public GroupKeyCache keyCache = null;
+    private ChannelSummary channel = null;
+    private volatile long lastSeenSeq = 0; // Sequence number of the newest message shown in the current channel
     public HostList hostList = null;
     private IntermediateCLI inter;
 
@@ -53,6 +63,7 @@ public class MyClientApp {
         MyClientApp clientApp = new MyClientApp();
         clientApp.loadKeys();
         clientApp.loadHostList();
+        clientApp.loadKeyCache();
 
         // This runs a thread that saves the lists on program exit
         Runtime runtime = Runtime.getRuntime();
@@ -76,8 +87,10 @@ public class MyClientApp {
                 connectAuth();
             } else if (!authClient.hasSession()) { // Must connect to authentication client to get token
                 getAuthSessionKey();
-            } else if (keyMap == null) {
+            } else if (!keysSynced) {
                 getGroupKeys();
+                // Cached keys are still usable if the sync failed
+                keysSynced = keyMap != null;
             }  else if (isInAuth) {
                 authOptions();
             } else if (msgClient == null || !msgClient.isConnected()) {
@@ -247,6 +260,15 @@ public class MyClientApp {
 
         if (authClient.getSessionKey(username, inter, suite)) {
             System.out.println("Successfully got authentication session key.");
+            this.username = username;
+            // Keys of whoever was logged in before must not end up in this user's cache
+            keyMap = null;
+            keysSynced = false;
+            GroupKeyMap cached = keyCache.load(username, suite, masterKey);
+            if (cached != null) {
+                keyMap = cached;
+                System.out.println("Loaded cached group keys.");
+            }
         } else {
             System.out.println("Failed to get authentication session key.");
         }
@@ -270,10 +292,32 @@ public class MyClientApp {
         }
     }
 
+    // Only asks for keys we don't have yet once we hold some
     private void getGroupKeys() {
-        GroupKeyMap newKeyMap = authClient.getGroupKeys();
-        if (newKeyMap != null) {
-            keyMap = newKeyMap;
+        if (keyMap == null) {
+            keyMap = authClient.getGroupKeys(null);
+        } else {
+            GroupKeyMap delta = authClient.getGroupKeys(keyMap.getVersions());
+            if (delta == null) {
+                System.out.println("Failed to get fresh group keys.");
+                return;
+            }
+            // Merged into a copy so that a delta that doesn't apply leaves the keys we have alone
+            GroupKeyMap merged = keyMap.copy();
+            if (merged.merge(delta)) {
+                keyMap = merged;
+            } else {
+                System.out.println("Group keys out of sync. Fetching all group keys...");
+                GroupKeyMap newKeyMap = authClient.getGroupKeys(null);
+                if (newKeyMap == null) {
+                    System.out.println("Failed to get fresh group keys.");
+                    return;
+                }
+                keyMap = newKeyMap;
+            }
+        }
+        if (keyMap != null) {
+            keyCache.store(username, keyMap, suite, masterKey);
             System.out.println("Successfully got fresh group keys.");
         } else {
             System.out.println("Failed to get fresh group keys.");
@@ -371,7 +415,9 @@ public class MyClientApp {
         System.out.println("3. Delete Channel");
         System.out.println("4. Refresh Token");
         System.out.println("5. Refresh Group Keys");
-        System.out.println("6. Disconnect from Message Server");
+        System.out.println("6. Compact Group Keys");
+        System.out.println("7. Set Channel Retention");
+        System.out.println("8. Disconnect from Message Server");
         int choice;
         do {
             System.out.print("Enter your choice: ");
@@ -381,11 +427,12 @@ public class MyClientApp {
             }
             choice = scanner.nextInt();
             scanner.nextLine();
-        } while (choice < 1 || choice > 6 );
+        } while (choice < 1 || choice > 8 );
         switch (choice) {
             case 1:
                 System.out.println("Select a channel to enter:");
                 channel = selectChannel();
+                if (channel != null) lastSeenSeq = channel.getLastSequence();
                 break;
             case 2:
                 createChannel();
@@ -399,6 +446,12 @@ public class MyClientApp {
             case 5:
                 getGroupKeys();
                 break;
+            case 6:
+                compactGroupKeys();
+                break;
+            case 7:
+                setRetention();
+                break;
             default:
                 msgClient.disconnect();
                 msgClient = null;
@@ -407,15 +460,15 @@ public class MyClientApp {
         }
     }
 
-    private Channel selectChannel() {
-        List<Channel> channels = msgClient.getChannels(token);
+    private ChannelSummary selectChannel() {
+        List<ChannelSummary> channels = msgClient.getChannels(token);
         if (channels == null) {
             System.out.println("Failed to get channels.");
         } else if (channels.size() == 0) {
             System.out.println("You have no channels.");
         } else {
             for (int i = 0; i < channels.size(); i++) {
-                System.out.printf("%d. Group: %-12s    Channel: %s\n", i+1, channels.get(i).getGroup(), channels.get(i).getName());
+                System.out.printf("%d. Group: %-12s    Channel: %-20s    Messages: %d\n", i+1, channels.get(i).getGroup(), channels.get(i).getName(), channels.get(i).getMessageCount());
             }
             int choice;
             do {
@@ -438,7 +491,11 @@ public class MyClientApp {
         System.out.println("2. Write Message");
         System.out.println("3. Edit Message");
         System.out.println("4. Delete Message");
-        System.out.println("5. Go Back");
+        System.out.println("5. Wait for New Messages");
+        System.out.println("6. Follow Channel");
+        System.out.println("7. Send File");
+        System.out.println("8. Save Attachment");
+        System.out.println("9. Go Back");
         int choice;
         do {
             System.out.print("Enter your choice: ");
@@ -448,7 +505,7 @@ public class MyClientApp {
             }
             choice = scanner.nextInt();
             scanner.nextLine();
-        } while (choice < 1 || choice > 5 );
+        } while (choice < 1 || choice > 9 );
         switch (choice) {
             case 1:
                 printMessages();
@@ -462,6 +519,18 @@ public class MyClientApp {
             case 4:
                 deleteMessage();
                 break;
+            case 5:
+                waitForMessages();
+                break;
+            case 6:
+                followChannel();
+                break;
+            case 7:
+                sendFile();
+                break;
+            case 8:
+                saveAttachment();
+                break;
             default:
                 channel = null;
                 break;
@@ -479,6 +548,7 @@ public class MyClientApp {
         int port = scanner.nextInt();
         scanner.nextLine();
         MessageClient newClient = new MessageClient();
+        newClient.setCompressText(compressText);
         if (newClient.connect(server, port)) {
             msgClient = newClient;
             System.out.println("Successfully connected to message server");
@@ -493,9 +563,10 @@ public class MyClientApp {
         System.out.print("Enter the channel name: ");
         String channelName = scanner.nextLine();
 
-        Channel newChannel = msgClient.createChannel(groupName, channelName, token);
+        ChannelSummary newChannel = msgClient.createChannel(groupName, channelName, token);
         if (newChannel != null) {
             channel = newChannel;
+            lastSeenSeq = 0;
             System.out.println("Successfully created channel.");
         } else {
             System.out.println("Failed to create channel.");
@@ -504,7 +575,7 @@ public class MyClientApp {
 
     private void deleteChannel() {
         System.out.println("Select a channel to delete:");
-        Channel delChannel = selectChannel();
+        ChannelSummary delChannel = selectChannel();
         if (delChannel == null) {
             System.out.println("Failed to select a channel to delete");
         } else {
@@ -516,6 +587,84 @@ public class MyClientApp {
         }
     }
 
+    private void setRetention() {
+        System.out.println("Select a channel to set retention for:");
+        ChannelSummary retChannel = selectChannel();
+        if (retChannel == null) {
+            System.out.println("Failed to select a channel");
+            return;
+        }
+        System.out.println("Enter 0 for no limit.");
+        long days = readLong("Delete messages older than how many days? ");
+        long count = readLong("Keep at most how many messages? ");
+        long kilobytes = readLong("Keep at most how many kilobytes of messages? ");
+        RetentionPolicy policy = new RetentionPolicy(days * 86400000L, (int)Math.min(count, Integer.MAX_VALUE), kilobytes * 1024);
+        RetentionPolicy applied = msgClient.setRetention(retChannel, policy, token);
+        if (applied != null) {
+            System.out.println("Channel now keeps messages within: " + applied);
+        } else {
+            System.out.println("Failed to set retention.");
+        }
+    }
+
+    private long readLong(String prompt) {
+        long value;
+        do {
+            System.out.print(prompt);
+            while (!scanner.hasNextLong()) {
+                System.out.println("Please enter an integer.");
+                scanner.nextLine();
+            }
+            value = scanner.nextLong();
+            scanner.nextLine();
+        } while (value < 0);
+        return value;
+    }
+
+    // Re-encrypts a group's messages on this host under the latest key, then offers to retire the old keys
+    private void compactGroupKeys() {
+        System.out.print("Enter the group name: ");
+        String groupName = scanner.nextLine();
+        if (keyMap.getGroupKeys(groupName) == null) {
+            System.out.println("You have no keys for that group.");
+            return;
+        }
+        if (keyMap.getGroupKeys(groupName).size() == 1) {
+            System.out.println("Group only has one key. Nothing to compact.");
+            return;
+        }
+        List<ChannelSummary> channels = msgClient.getChannels(token);
+        if (channels == null) {
+            System.out.println("Failed to get channels.");
+            return;
+        }
+        int minKeyIndex = keyMap.getGroupKeys(groupName).size() - 1;
+        for (ChannelSummary c: channels) {
+            if (!c.getGroup().equals(groupName)) continue;
+            System.out.printf("Re-encrypting channel %s...\n", c.getName());
+            int channelMin = msgClient.reencryptChannel(c, token, keyMap, REENCRYPT_BATCH_SIZE);
+            if (channelMin < 0) {
+                System.out.println("Failed to re-encrypt channel.");
+                return;
+            }
+            minKeyIndex = Math.min(minKeyIndex, channelMin);
+        }
+        if (minKeyIndex == 0) {
+            System.out.println("Some messages still use the oldest group key. No keys can be retired.");
+            return;
+        }
+        System.out.printf("No messages on this host use group keys below version %d.\n", minKeyIndex);
+        System.out.println("Retire those keys? Only do this if no other host server has older messages for this group. (y/n)");
+        String ans = scanner.nextLine();
+        if (ans.equals("y")) {
+            if (authClient.retireGroupKeys(groupName, minKeyIndex)) {
+                System.out.println("Successfully retired old group keys.");
+            } else {
+                System.out.println("Failed to retire old group keys.");
+            }
+        }
+    }
+
     private void sendMessage() {
         System.out.print("Enter a message: ");
         String text = scanner.nextLine();
@@ -529,6 +678,33 @@ public class MyClientApp {
         }
     }
 
+    private void sendFile() {
+        System.out.print("Enter the path of the file: ");
+        File file = new File(scanner.nextLine());
+        if (!file.isFile()) {
+            System.out.println("No such file.");
+            return;
+        }
+        Message message = msgClient.sendFile(channel, file, token, keyMap);
+        if (message != null) {
+            System.out.println("Successfully sent file.");
+        } else {
+            System.out.println("Failed to send file.");
+        }
+    }
+
+    private void saveAttachment() {
+        Message message = selectMessage();
+        if (message == null) return;
+        System.out.print("Enter the path to save it to: ");
+        File file = new File(scanner.nextLine());
+        if (msgClient.saveFile(message, file, token, keyMap)) {
+            System.out.println("Successfully saved message.");
+        } else {
+            System.out.println("Failed to save message.");
+        }
+    }
+
     private void printMessages() {
         List<MessageAndText> messages = msgClient.readMessages(channel, token);
         if (messages == null) {
@@ -541,6 +717,49 @@ public class MyClientApp {
                 String owner = messages.get(i).getMessage().getOwner();
                 String text = getMessageText(messages.get(i));
                 System.out.printf("%d. %s: %s\n", i+1, owner, text);
+                lastSeenSeq = Math.max(lastSeenSeq, messages.get(i).getMessage().getSeq());
+            }
+        }
+    }
+
+    // Prints messages pushed by the server as they are sent, until the user presses Enter
+    private void followChannel() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ids.add(channel.getId());
+        ArrayList<Long> subscribed = msgClient.subscribe(ids, new FollowListener(), token);
+        if (subscribed == null || subscribed.size() == 0) {
+            System.out.println("Failed to follow channel.");
+            return;
+        }
+        System.out.println("Following channel. Press Enter to stop.");
+        scanner.nextLine();
+        msgClient.unsubscribe(ids, token);
+    }
+
+    private class FollowListener implements PushListener {
+        public void messagePushed(MessageAndText mt) {
+            System.out.printf("%s: %s\n", mt.getMessage().getOwner(), getMessageText(mt));
+            lastSeenSeq = Math.max(lastSeenSeq, mt.getMessage().getSeq());
+        }
+
+        public void resyncNeeded(ArrayList<Long> channelIds) {
+            System.out.println("Fell behind and missed some messages. Use Read Messages to catch up.");
+        }
+    }
+
+    // Blocks until someone posts in the channel, then prints the messages we haven't seen
+    private void waitForMessages() {
+        System.out.printf("Waiting up to %d seconds for new messages...\n", WAIT_MILLIS / 1000);
+        List<MessageAndText> messages = msgClient.waitMessages(channel, lastSeenSeq, WAIT_MILLIS, Integer.MAX_VALUE, token);
+        if (messages == null) {
+            System.out.println("Failed to wait for messages.");
+        } else if (messages.size() == 0) {
+            System.out.println("No new messages.");
+        } else {
+            System.out.println("New messages:");
+            for (MessageAndText mt: messages) {
+                System.out.printf("%s: %s\n", mt.getMessage().getOwner(), getMessageText(mt));
+                lastSeenSeq = Math.max(lastSeenSeq, mt.getMessage().getSeq());
             }
         }
     }
@@ -697,22 +916,41 @@ public class MyClientApp {
 		}
     }
 
+    private void loadKeyCache() {
+        try {
+            FileInputStream cacheF = new FileInputStream(keyCacheFile);
+            ObjectInputStream cacheStream = new ObjectInputStream(cacheF);
+            keyCache = (GroupKeyCache) cacheStream.readObject();
+            cacheStream.close();
+        } catch (FileNotFoundException e) {
+            keyCache = new GroupKeyCache();
+        } catch (IOException e) {
+            System.out.println("Error reading from group key cache file. Starting with an empty cache...");
+            keyCache = new GroupKeyCache();
+        } catch (ClassNotFoundException e) {
+            System.out.println("Error reading from group key cache file. Starting with an empty cache...");
+            keyCache = new GroupKeyCache();
+        }
+    }
+
     private String getMessageText(MessageAndText mt) {
         Message msg = mt.getMessage();
         String group = msg.getGroup();
         byte[] tBytes = mt.getText();
+        if (tBytes == null) return String.format("[%d byte attachment, use Save Attachment]", msg.getLength());
         int keyIndex = msg.getKeyIndex();
         List<SecretKey> groupKeys = keyMap.getGroupKeys(group);
         if (keyIndex >= groupKeys.size()) return null;
         SecretKey gk = groupKeys.get(keyIndex);
+        if (gk == null) return null; // Key was retired
         byte[] iv = msg.getIv();
-        String text = suite.decryptStringAES(tBytes, gk, iv);
+        String text = suite.decryptMessageText(tBytes, gk, iv, msg.getFormat());
         return text;
     }
 }
 
 
-// Saves the HostList to file upon shutdown
+// Saves the HostList and group key cache to file upon shutdown
 class ShutDownListenerClient extends Thread {
 	public MyClientApp my_cli;
 
@@ -725,6 +963,10 @@ class ShutDownListenerClient extends Thread {
 		try {
 			outStream = new ObjectOutputStream(new FileOutputStream("HostList.bin"));
 			outStream.writeObject(my_cli.hostList);
+			outStream.close();
+			outStream = new ObjectOutputStream(new FileOutputStream(MyClientApp.keyCacheFile));
+			outStream.writeObject(my_cli.keyCache);
+			outStream.close();
 		} catch (Exception e) {
 			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
@@ -733,7 +975,7 @@ class ShutDownListenerClient extends Thread {
     // This is the end of the ShutdownListenerClient class
 }
 
-// Saves the HostList to file every 5 minutes
+// Saves the HostList and group key cache to file every 5 minutes
 class AutoSaveClient extends Thread {
 	public MyClientApp my_cli;
 
@@ -749,6 +991,10 @@ class AutoSaveClient extends Thread {
 				try {
 					outStream = new ObjectOutputStream(new FileOutputStream("HostList.bin"));
 					outStream.writeObject(my_cli.hostList);
+					outStream.close();
+					outStream = new ObjectOutputStream(new FileOutputStream(MyClientApp.keyCacheFile));
+					outStream.writeObject(my_cli.keyCache);
+					outStream.close();
 				} catch (Exception e) {
 					System.err.println("Error: " + e.getMessage());
 					e.printStackTrace(System.err);
@@ -0,0 +1,10 @@
+import java.util.ArrayList;
+
+// For when the host server pushes something to a subscribed client
+// Called from MessageClient's reader thread, so it must not make requests on the same client
+
+interface PushListener {
+    void messagePushed(MessageAndText message);
+    // Messages in these channels were dropped because we fell behind. Read them again to catch up
+    void resyncNeeded(ArrayList<Long> channelIds);
+}
@@ -0,0 +1,224 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Deletes message files in the background, at no more than a set number of files per second
+ * Can be found as MessageServer.reclaimer
+ * Deleting a channel only removes it from the channel list and records the names of its message files
+ * in a list under the reclaim directory, which is on disk before the request returns
+ * Files from before blobs that a deleted or edited message no longer uses are recorded the same way
+ * A queued list waits until the next metadata store checkpoint has saved the change that freed its files,
+ * so a crash can't bring back messages whose files are gone. AutoSaveChannels hands it over with takeWaiting and startDeleting
+ * The reclaimer then works through the lists and removes each one once its files are gone
+ * Lists left over from a crash are picked up again at startup, without names the loaded metadata still uses
+ * Blobs in a list are skipped, since other channels may share them. MessageServer.blobs collects those
+ */
+
+public class Reclaimer implements Runnable {
+
+    private static final String LIST_PREFIX = "tomb";
+    private static final String LIST_SUFFIX = ".list";
+
+    private File dir;
+    private MessageStore store;
+    private int rate; // Files deleted per second
+    private LinkedList<Pending> queue;
+    private ArrayList<Pending> waiting; // Queued lists waiting for a checkpoint
+    private long filesDeleted = 0;
+    private long filesPending = 0; // Files in lists not finished yet, counting the current one
+    private boolean closed = false;
+
+    public Reclaimer(File _dir, MessageStore _store, int _rate) {
+        dir = _dir;
+        store = _store;
+        rate = Math.max(1, _rate);
+        queue = new LinkedList<Pending>();
+        waiting = new ArrayList<Pending>();
+    }
+
+    /*
+     * Starts deleting the lists a previous run didn't finish
+     * Names still used by a message in the channel are dropped from them first, so they don't wait for a checkpoint
+     */
+    public void resume(ChannelList channelList) throws IOException {
+        File[] lists = dir.listFiles((d, name) -> name.startsWith(LIST_PREFIX) && name.endsWith(LIST_SUFFIX));
+        if (lists == null) return;
+        for (File list: lists) {
+            ArrayList<String> names = new ArrayList<String>();
+            long channelId;
+            try {
+                channelId = readList(list, names);
+            } catch (IOException e) {
+                System.err.println("Could not read " + list + ": " + e.getMessage());
+                continue;
+            }
+            Channel channel = channelList.getChannel(channelId);
+            if (channel != null && !channel.isArchived()) { // An archive has its own copies of the files
+                HashSet<String> used = new HashSet<String>();
+                for (Message m: channel.readMessages()) {
+                    used.add(m.getPath());
+                }
+                names.removeIf(used::contains);
+                File rewritten = record(channelId, names);
+                list.delete();
+                list = rewritten;
+            }
+            synchronized (this) {
+                queue.add(new Pending(list, names.size()));
+                filesPending += names.size();
+            }
+        }
+        if (lists.length > 0) System.out.printf("Resuming deletion of %d message files\n", filesPending);
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "message-reclaim");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Durably records message files of a channel to delete. Pass the list to queue once nothing refers to them anymore
+    public File record(long channelId, List<String> names) throws IOException {
+        File list = File.createTempFile(LIST_PREFIX, LIST_SUFFIX, dir);
+        FileOutputStream out = new FileOutputStream(list);
+        try {
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            w.println(channelId);
+            for (String name: names) {
+                w.println(name);
+            }
+            w.flush();
+            if (w.checkError()) throw new IOException("Could not write " + list);
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            list.delete();
+            throw e;
+        }
+        out.close();
+        MessageStore.syncDir(dir);
+        return list;
+    }
+
+    // Holds a recorded list until a checkpoint that started after this call has finished
+    public synchronized void queue(File list, int count) {
+        waiting.add(new Pending(list, count));
+        filesPending += count;
+    }
+
+    // Lists queued so far. Pass them to startDeleting once a checkpoint started after this call has finished
+    public synchronized ArrayList<Pending> takeWaiting() {
+        ArrayList<Pending> taken = waiting;
+        waiting = new ArrayList<Pending>();
+        return taken;
+    }
+
+    public synchronized void startDeleting(List<Pending> lists) {
+        queue.addAll(lists);
+        notifyAll();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public synchronized long getFilesPending() {
+        return filesPending;
+    }
+
+    public synchronized int getListsPending() {
+        return queue.size() + waiting.size();
+    }
+
+    public synchronized String toString() {
+        return String.format("%d files deleted, %d pending in %d lists, %d of them waiting for a checkpoint", filesDeleted, filesPending, queue.size() + waiting.size(), waiting.size());
+    }
+
+    public void run() {
+        while (true) {
+            Pending p;
+            synchronized (this) {
+                while (!closed && queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                p = queue.peek();
+            }
+            ArrayList<String> names = new ArrayList<String>();
+            try {
+                readList(p.list, names);
+            } catch (IOException e) {
+                System.err.println("Could not read " + p.list + ": " + e.getMessage());
+            }
+            int step = Math.max(1, rate / 10); // Files between pauses of a tenth of a second
+            int done = 0;
+            for (String name: names) {
+                if (!BlobStore.isBlob(name)) store.fileFor(name).delete();
+                synchronized (this) {
+                    if (closed) return; // The list stays, so the rest is deleted after the restart
+                    filesDeleted++;
+                    filesPending--;
+                }
+                if (++done % step == 0) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            p.list.delete();
+            MessageStore.syncDir(dir);
+            synchronized (this) {
+                queue.poll();
+                filesPending -= p.count - done; // In case the list couldn't be read
+            }
+        }
+    }
+
+    // Adds the names in a list to names and returns its channel ID
+    private static long readList(File list, List<String> names) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(list, StandardCharsets.UTF_8));
+        try {
+            String line = in.readLine();
+            long channelId = line == null ? 0 : Long.parseLong(line.trim());
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) names.add(line);
+            }
+            return channelId;
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad reclaim list " + list);
+        } finally {
+            in.close();
+        }
+    }
+
+    static class Pending {
+        private File list;
+        private int count;
+
+        public Pending(File _list, int _count) {
+            list = _list;
+            count = _count;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * LRU cache of serialized read responses bounded by total bytes
+ * Can be found as MessageServer.responseCache
+ * Entries are keyed by channel ID and the page asked for, and remember the channel version they were built from
+ * A channel's version changes with every send, edit and delete, so entries from older versions are never returned
+ * and just age out
+ */
+
+public class ResponseCache {
+
+    private long budget;
+    private long used = 0;
+    private LinkedHashMap<String, Cached> responses;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ResponseCache(long _budget) {
+        budget = _budget;
+        responses = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+    }
+
+    // Returns null unless the response was built from this version of the channel
+    public synchronized byte[] get(long channelId, long version, String page) {
+        Cached e = responses.get(channelId + ":" + page);
+        if (e == null || e.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.bytes;
+    }
+
+    public synchronized void put(long channelId, long version, String page, byte[] bytes) {
+        if (bytes.length > budget) return;
+        Cached old = responses.put(channelId + ":" + page, new Cached(version, bytes));
+        if (old != null) used -= old.bytes.length;
+        used += bytes.length;
+        Iterator<Cached> it = responses.values().iterator();
+        while (used > budget && it.hasNext()) {
+            used -= it.next().bytes.length;
+            it.remove();
+        }
+    }
+
+    // Called when a channel is deleted
+    public synchronized void removeChannel(long channelId) {
+        Iterator<Map.Entry<String, Cached>> it = responses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Cached> e = it.next();
+            if (e.getKey().startsWith(channelId + ":")) {
+                used -= e.getValue().bytes.length;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d bytes in %d responses", hits, misses, used, responses.size());
+    }
+
+    private static class Cached {
+        private long version;
+        private byte[] bytes;
+
+        public Cached(long _version, byte[] _bytes) {
+            version = _version;
+            bytes = _bytes;
+        }
+    }
+}
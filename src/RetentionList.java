@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Hashtable;
+import java.util.Properties;
+
+/*
+ * Retention policies of the host server
+ * Can be found as MessageServer.retention
+ * Channel policies are set by channel owners and saved in ChannelRetention.bin whenever one changes
+ * Group policies are read from retention.properties, kept by the server's administrator, with lines like
+ *   staff.maxAgeDays=30
+ *   staff.maxMessages=10000
+ *   staff.maxBytes=1073741824
+ * The file is read again when it changes, so it can be edited while the server runs
+ */
+
+public class RetentionList {
+
+    private File channelFile;
+    private File groupFile;
+    private Hashtable<Long, RetentionPolicy> channels;
+    private Hashtable<String, RetentionPolicy> groups;
+    private long groupFileModified = -1;
+
+    @SuppressWarnings("unchecked")
+    public RetentionList(File _channelFile, File _groupFile) throws IOException {
+        channelFile = _channelFile;
+        groupFile = _groupFile;
+        channels = new Hashtable<Long, RetentionPolicy>();
+        groups = new Hashtable<String, RetentionPolicy>();
+        if (channelFile.exists()) {
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(channelFile));
+            try {
+                channels = (Hashtable<Long, RetentionPolicy>)in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Bad retention file " + channelFile, e);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    // An empty or null policy removes the channel's own policy
+    public synchronized void setChannelPolicy(long channelId, RetentionPolicy policy) throws IOException {
+        if (policy == null || policy.isEmpty()) {
+            if (channels.remove(channelId) == null) return;
+        } else {
+            channels.put(channelId, policy);
+        }
+        save();
+    }
+
+    public synchronized void removeChannel(long channelId) {
+        if (channels.remove(channelId) == null) return;
+        try {
+            save();
+        } catch (IOException e) {
+            System.err.println("Error saving channel retention: " + e.getMessage());
+        }
+    }
+
+    public synchronized RetentionPolicy getChannelPolicy(long channelId) {
+        return channels.get(channelId);
+    }
+
+    public synchronized RetentionPolicy getGroupPolicy(String group) {
+        reloadGroups();
+        return groups.get(group);
+    }
+
+    // Policy the sweeper applies to the channel, or null if nothing limits it
+    public synchronized RetentionPolicy getPolicy(Channel channel) {
+        RetentionPolicy p = RetentionPolicy.stricter(channels.get(channel.getId()), getGroupPolicy(channel.getGroup()));
+        return p == null || p.isEmpty() ? null : p;
+    }
+
+    public synchronized boolean isEmpty() {
+        reloadGroups();
+        return channels.isEmpty() && groups.isEmpty();
+    }
+
+    private void save() throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(channelFile));
+        try {
+            out.writeObject(channels);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void reloadGroups() {
+        long modified = groupFile.lastModified(); // 0 if there is no file
+        if (modified == groupFileModified) return;
+        groupFileModified = modified;
+        Hashtable<String, long[]> limits = new Hashtable<String, long[]>();
+        if (modified != 0) {
+            Properties props = new Properties();
+            try (FileInputStream in = new FileInputStream(groupFile)) {
+                props.load(in);
+            } catch (IOException e) {
+                System.err.println("Error reading " + groupFile + ": " + e.getMessage());
+                return;
+            }
+            for (String key: props.stringPropertyNames()) {
+                int dot = key.lastIndexOf('.');
+                if (dot <= 0) continue;
+                String group = key.substring(0, dot);
+                long value;
+                try {
+                    value = Long.parseLong(props.getProperty(key).trim());
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring " + key + " in " + groupFile + ", not a number");
+                    continue;
+                }
+                long[] l = limits.computeIfAbsent(group, g -> new long[3]);
+                switch (key.substring(dot + 1)) {
+                    case "maxAgeDays":
+                        l[0] = value * 86400000L;
+                        break;
+                    case "maxMessages":
+                        l[1] = Math.min(value, Integer.MAX_VALUE);
+                        break;
+                    case "maxBytes":
+                        l[2] = value;
+                        break;
+                    default:
+                        System.err.println("Ignoring unknown setting " + key + " in " + groupFile);
+                        break;
+                }
+            }
+        }
+        groups = new Hashtable<String, RetentionPolicy>();
+        for (String group: limits.keySet()) {
+            long[] l = limits.get(group);
+            groups.put(group, new RetentionPolicy(l[0], (int)l[1], l[2]));
+        }
+    }
+}
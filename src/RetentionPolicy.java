@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Limits on the messages a channel keeps: how old they may get, how many there may be, and how many bytes they may take
+ * Set for a channel by its owner with SETRETENTION, and for a whole group in the host server's retention.properties
+ * A limit of 0 means no limit. Where a channel and its group both have one, the stricter limit applies
+ */
+
+public class RetentionPolicy implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private long maxAge; // Milliseconds
+    private int maxCount;
+    private long maxBytes;
+
+    public RetentionPolicy(long _maxAge, int _maxCount, long _maxBytes) {
+        maxAge = Math.max(0, _maxAge);
+        maxCount = Math.max(0, _maxCount);
+        maxBytes = Math.max(0, _maxBytes);
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isEmpty() {
+        return maxAge == 0 && maxCount == 0 && maxBytes == 0;
+    }
+
+    // Policy with the stricter of each limit. Either may be null
+    public static RetentionPolicy stricter(RetentionPolicy a, RetentionPolicy b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return new RetentionPolicy(min(a.maxAge, b.maxAge), (int)min(a.maxCount, b.maxCount), min(a.maxBytes, b.maxBytes));
+    }
+
+    // Smaller of two limits, where 0 means no limit
+    private static long min(long a, long b) {
+        if (a == 0) return b;
+        if (b == 0) return a;
+        return Math.min(a, b);
+    }
+
+    /*
+     * Messages this policy expires at time now, oldest first and at most limit of them
+     * messages has to be in sequence order, which is also the order they arrived in
+     * Messages saved before they had timestamps never expire by age
+     */
+    public ArrayList<Message> expired(List<Message> messages, long now, int limit) {
+        int overCount = maxCount > 0 ? Math.max(0, messages.size() - maxCount) : 0;
+        int overBytes = 0;
+        if (maxBytes > 0) {
+            long total = 0;
+            for (Message m: messages) {
+                total += m.getLength();
+            }
+            while (total > maxBytes && overBytes < messages.size()) {
+                total -= messages.get(overBytes++).getLength();
+            }
+        }
+        long cutoff = now - maxAge;
+        ArrayList<Message> expired = new ArrayList<Message>();
+        for (int i = 0; i < messages.size() && expired.size() < limit; i++) {
+            Message m = messages.get(i);
+            boolean old = maxAge > 0 && m.getTimestamp() != 0 && m.getTimestamp() < cutoff;
+            if (i < overCount || i < overBytes || old) {
+                expired.add(m);
+            } else if (m.getTimestamp() != 0) { // Everything after this is newer
+                break;
+            }
+        }
+        return expired;
+    }
+
+    // True if a channel with this many messages and bytes, whose oldest message has that timestamp, has any to expire
+    public boolean exceeds(int count, long bytes, long oldest, long now) {
+        if (maxCount > 0 && count > maxCount) return true;
+        if (maxBytes > 0 && bytes > maxBytes) return true;
+        return maxAge > 0 && oldest != 0 && oldest < now - maxAge;
+    }
+
+    public String toString() {
+        if (isEmpty()) return "no limits";
+        ArrayList<String> limits = new ArrayList<String>();
+        if (maxAge > 0) limits.add(String.format("%.1f days", maxAge / 86400000.0));
+        if (maxCount > 0) limits.add(maxCount + " messages");
+        if (maxBytes > 0) limits.add(maxBytes + " bytes");
+        return String.join(", ", limits);
+    }
+}
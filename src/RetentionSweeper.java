@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * Expires messages according to MessageServer.retention, in the background
+ * Every interval it goes through the channels that have a policy and removes their oldest messages past its limits,
+ * at most batch messages per channel at a time and with a pause in between, so senders only ever wait for one batch
+ * Expired messages' files are handed to MessageServer.reclaimer like those of a deleted channel,
+ * and blobs are released to MessageServer.blobs. Neither deletes a file before a checkpoint has saved the removal
+ * Archived channels are checked against the totals in their archive and only restored when they have messages to expire
+ */
+
+public class RetentionSweeper implements Runnable {
+
+    private long interval; // Milliseconds between sweeps
+    private int batch;
+    private long pause; // Milliseconds between batches
+    private volatile boolean closed = false;
+    private long expired = 0;
+    private long sweeps = 0;
+
+    public RetentionSweeper(long _interval, int _batch, long _pause) {
+        interval = _interval;
+        batch = Math.max(1, _batch);
+        pause = _pause;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "retention-sweep");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    public synchronized long getSweeps() {
+        return sweeps;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d messages expired in %d sweeps", expired, sweeps);
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (MessageServer.retention.isEmpty()) continue;
+            for (Channel c: MessageServer.channelList.copyChannels()) {
+                if (closed) return;
+                try {
+                    sweep(c);
+                } catch (IOException | RuntimeException e) {
+                    System.err.printf("Error expiring messages of %s/%s: %s\n", c.getGroup(), c.getName(), e.getMessage());
+                }
+            }
+            synchronized (this) {
+                sweeps++;
+            }
+        }
+    }
+
+    private void sweep(Channel c) throws IOException {
+        RetentionPolicy policy = MessageServer.retention.getPolicy(c);
+        if (policy == null) return;
+        ChannelArchive archive = c.getArchive(); // Only restored if something in it has expired
+        if (archive != null && !policy.exceeds(archive.getCount(), archive.getBytes(), archive.getOldest(), System.currentTimeMillis())) return;
+        while (!closed) {
+            ArrayList<String> paths = new ArrayList<String>();
+            File list;
+            synchronized (MessageThread.class) { // Same lock as the message handlers
+                if (MessageServer.channelList.getChannel(c.getId()) != c) return; // Deleted meanwhile
+                ArrayList<Message> old = policy.expired(c.getMessages(), System.currentTimeMillis(), batch);
+                if (old.isEmpty()) return;
+                for (Message m: old) {
+                    paths.add(m.getPath());
+                }
+                list = MessageServer.reclaimer.record(c.getId(), paths);
+                for (Message m: old) {
+                    c.removeMessage(m.getSeq());
+                    MessageServer.textCache.invalidate(m.getPath());
+                }
+            }
+            MessageServer.reclaimer.queue(list, paths.size());
+            synchronized (this) {
+                expired += paths.size();
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
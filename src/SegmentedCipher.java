@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Seekable encryption for long messages, Message.FORMAT_SEGMENTED
+ * The text is cut into segments of SEGMENT_BYTES and each one is encrypted on its own with AES-GCM,
+ * so any range of the text can be read by fetching and decrypting just the segments that cover it
+ * Ciphertext segment i starts at i * (SEGMENT_BYTES + TAG_BYTES), and only the last one may be shorter
+ * Every message gets a key of its own, an HMAC-SHA256 of its IV under the group key, so nonces only have to be unique within a message
+ * The nonce of a segment is its number and whether it is the last, so segments can't be moved around or the message cut short unnoticed
+ */
+
+public class SegmentedCipher {
+
+    public static final int SEGMENT_BYTES = 64 << 10;
+    public static final int TAG_BYTES = 16;
+    private static final int STRIDE = SEGMENT_BYTES + TAG_BYTES;
+
+    private SecretKey key;
+
+    public SegmentedCipher(SecretKey groupKey, byte[] iv) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(groupKey.getEncoded(), "HmacSHA256"));
+        mac.update("segments".getBytes(StandardCharsets.UTF_8));
+        key = new SecretKeySpec(mac.doFinal(iv), "AES");
+    }
+
+    // Length of the ciphertext of a text this long. Even an empty text has one segment
+    public static long encryptedLength(long plainLength) {
+        long segments = Math.max(1, (plainLength + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        return plainLength + segments * TAG_BYTES;
+    }
+
+    public static long plainLength(long encryptedLength) {
+        long rest = encryptedLength % STRIDE;
+        return encryptedLength / STRIDE * SEGMENT_BYTES + Math.max(0, rest - TAG_BYTES);
+    }
+
+    public static int segmentCount(long encryptedLength) {
+        return (int)((encryptedLength + STRIDE - 1) / STRIDE);
+    }
+
+    // Where ciphertext segment index starts
+    public static long segmentOffset(int index) {
+        return (long)index * STRIDE;
+    }
+
+    public byte[] encrypt(int index, boolean last, byte[] plain, int offset, int length) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(index, last)));
+        return c.doFinal(plain, offset, length);
+    }
+
+    // Throws if the segment was changed, or isn't segment index of the message
+    public byte[] decrypt(int index, boolean last, byte[] segment, int offset, int length) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(index, last)));
+        return c.doFinal(segment, offset, length);
+    }
+
+    private static byte[] nonce(int index, boolean last) {
+        ByteBuffer b = ByteBuffer.allocate(12);
+        b.putInt(7, index);
+        b.put(11, (byte)(last ? 1 : 0));
+        return b.array();
+    }
+
+    // The ciphertext of everything in plain, encrypted a segment at a time as it is read
+    public InputStream encrypting(InputStream plain) {
+        return new Encrypting(plain);
+    }
+
+    private class Encrypting extends InputStream {
+        private PushbackInputStream in;
+        private int index = 0;
+        private byte[] segment = new byte[0];
+        private int pos = 0;
+        private boolean done = false; // The last segment has been encrypted
+
+        public Encrypting(InputStream _in) {
+            in = new PushbackInputStream(_in, 1);
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos == segment.length) {
+                if (done) return -1;
+                next();
+            }
+            int n = Math.min(len, segment.length - pos);
+            System.arraycopy(segment, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        // Reads one byte past the segment to know whether it is the last
+        private void next() throws IOException {
+            byte[] plain = in.readNBytes(SEGMENT_BYTES);
+            int peek = in.read();
+            if (peek < 0) {
+                done = true;
+            } else {
+                in.unread(peek);
+            }
+            try {
+                segment = encrypt(index++, done, plain, 0, plain.length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt segment", e);
+            }
+            pos = 0;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
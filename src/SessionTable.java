@@ -0,0 +1,73 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Table of live host sessions kept in memory by the message server
+ * Maps the compact session ID handed out with a host token to that session's key
+ * Lets MessageThread skip decrypting the host token on every request
+ * Bounded: sessions expire after sitting idle, and the least recently used one is evicted when full
+ * A miss is never fatal since the host token can always be decrypted again
+ */
+
+public class SessionTable {
+
+    private int capacity;
+    private long timeout; // Idle time in milliseconds before a session expires
+    private LinkedHashMap<String, Session> sessions;
+
+    public SessionTable(int _capacity, long _timeout) {
+        capacity = _capacity;
+        timeout = _timeout;
+        sessions = new LinkedHashMap<String, Session>(16, 0.75f, true); // Access order, eldest is least recently used
+    }
+
+    public synchronized void put(String id, SecretKey key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        sessions.put(id, new Session(key, now));
+        if (sessions.size() > capacity) {
+            Iterator<String> it = sessions.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    // Returns null if the session is unknown or has expired
+    public synchronized SecretKey get(String id) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Session s = sessions.get(id);
+        if (s == null) return null;
+        s.lastUsed = now;
+        return s.key;
+    }
+
+    public synchronized void remove(String id) {
+        sessions.remove(id);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    // Entries are in access order so we can stop at the first one that is still fresh
+    private void expire(long now) {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsed < timeout) break;
+            it.remove();
+        }
+    }
+
+    private class Session {
+        private SecretKey key;
+        private long lastUsed;
+
+        public Session(SecretKey _key, long _lastUsed) {
+            key = _key;
+            lastUsed = _lastUsed;
+        }
+    }
+}
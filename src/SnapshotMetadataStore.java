@@ -0,0 +1,263 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/*
+ * Metadata store that keeps channels in heap and saves them all to a ChannelSnapshot on checkpoint
+ * Loading only reads the channel directory, and each channel reads its block the first time it is used
+ * The snapshot file stays open for that, and blocks of channels that were never loaded are copied as raw bytes on save
+ * Channel list files written with plain Java serialization are still read, all at once
+ * Changes between checkpoints are written to a Journal next to the snapshot and replayed over it at startup
+ * Records set a channel or message to what it became, so replaying ones the snapshot already has changes nothing
+ * Nothing can be evicted since the journal can't be read back one channel at a time
+ * Archived channels are saved with no messages, since their archive has them
+ */
+
+public class SnapshotMetadataStore implements MetadataStore {
+
+    private String path;
+    private String journalPath;
+    private Journal journal; // Null until the journal has been replayed
+    private Object checkpointLock = new Object();
+    private ChannelSnapshot snapshot;
+    private Hashtable<Channel, ChannelSnapshot.Entry> unloaded; // Channels whose block hasn't been read yet
+
+    public SnapshotMetadataStore(String _path) {
+        path = _path;
+        journalPath = _path + ".journal";
+        unloaded = new Hashtable<Channel, ChannelSnapshot.Entry>();
+    }
+
+    public synchronized ChannelList load() throws IOException {
+        ChannelList channelList = loadSnapshot();
+        Journal j = new Journal(journalPath);
+        ArrayList<Envelope> records = j.replay(0);
+        for (Envelope record: records) {
+            replay(channelList, record);
+        }
+        if (records.size() > 0) System.out.printf("Replayed %d channel changes from the journal\n", records.size());
+        j.open();
+        journal = j;
+        return channelList;
+    }
+
+    private ChannelList loadSnapshot() throws IOException {
+        ChannelList channelList;
+        try {
+            if (!ChannelSnapshot.isSnapshot(path)) { // Old format, one serialized object graph
+                ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(path));
+                try {
+                    channelList = (ChannelList) objIn.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                } finally {
+                    objIn.close();
+                }
+                channelList.attach(this);
+                return channelList;
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("ChannelList does not exist. Creating ChannelList...");
+            channelList = new ChannelList();
+            channelList.attach(this);
+            return channelList;
+        }
+
+        snapshot = ChannelSnapshot.open(path);
+        channelList = new ChannelList();
+        for (ChannelSnapshot.Entry e: snapshot.getEntries()) {
+            Channel channel = new Channel(e.id, e.owner, e.group, e.name, this, e.count, e.lastSequence);
+            unloaded.put(channel, e);
+            channelList.addChannel(channel);
+        }
+        channelList.setNextId(snapshot.getNextId());
+        channelList.attach(this);
+        return channelList;
+    }
+
+    public synchronized ArrayList<Message> loadMessages(Channel channel) throws IOException {
+        ArrayList<Message> messages = readMessages(channel);
+        unloaded.remove(channel);
+        return messages;
+    }
+
+    // The block stays where it is, so the channel can still be loaded from it later
+    public synchronized ArrayList<Message> readMessages(Channel channel) throws IOException {
+        ChannelSnapshot.Entry e = unloaded.get(channel);
+        if (e == null) return new ArrayList<Message>();
+        return ChannelSnapshot.decodeMessages(e.group, e.name, snapshot.readBlock(e.offset, e.length), snapshot.getVersion());
+    }
+
+    // Everything lives in heap until the next checkpoint, and the journal has the changes until then
+    public void addChannel(Channel channel) {
+        Envelope record = new Envelope("ADDCHANNEL");
+        record.addObject(channel.getId());
+        record.addObject(channel.getOwner());
+        record.addObject(channel.getGroup());
+        record.addObject(channel.getName());
+        write(record);
+    }
+
+    public void removeChannel(Channel channel) {
+        synchronized (this) {
+            unloaded.remove(channel);
+        }
+        Envelope record = new Envelope("REMOVECHANNEL");
+        record.addObject(channel.getId());
+        write(record);
+    }
+
+    public void putMessage(Channel channel, Message message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ChannelSnapshot.writeMessage(new DataOutputStream(bytes), message);
+            Envelope record = new Envelope("PUTMESSAGE");
+            record.addObject(channel.getId());
+            record.addObject(bytes.toByteArray());
+            write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void removeMessage(Channel channel, Message message) {
+        Envelope record = new Envelope("REMOVEMESSAGE");
+        record.addObject(channel.getId());
+        record.addObject(message.getSeq());
+        write(record);
+    }
+
+    public void sync() throws IOException {
+        Journal j = getJournal();
+        if (j != null) j.sync();
+    }
+
+    // Nothing is journaled while the journal itself is being replayed
+    private void write(Envelope record) {
+        Journal j = getJournal();
+        if (j == null) return;
+        try {
+            j.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized Journal getJournal() {
+        return journal;
+    }
+
+    // Applies one journal record. Channels and messages it refers to may already be gone
+    private void replay(ChannelList channelList, Envelope record) throws IOException {
+        ArrayList<Object> contents = record.getObjContents();
+        Channel channel = channelList.getChannel((Long) contents.get(0));
+        switch (record.getMessage()) {
+            case "ADDCHANNEL":
+                if (channel != null) break;
+                channel = new Channel((String) contents.get(1), (String) contents.get(2), (String) contents.get(3));
+                channel.setId((Long) contents.get(0));
+                channel.attach(this);
+                channelList.addChannel(channel);
+                break;
+            case "REMOVECHANNEL":
+                if (channel != null) channelList.removeChannel(channel.getGroup(), channel.getName());
+                break;
+            case "PUTMESSAGE":
+                if (channel == null) break;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[]) contents.get(1)));
+                channel.replayMessage(ChannelSnapshot.readMessage(in, channel.getGroup(), channel.getName(), ChannelSnapshot.VERSION));
+                break;
+            case "REMOVEMESSAGE":
+                if (channel != null) channel.replayRemove((Long) contents.get(1));
+                break;
+            default:
+                System.out.printf("Unknown journal record: %s\n", record.getMessage());
+        }
+    }
+
+    public void touch(Channel channel) {
+    }
+
+    /*
+     * Writes the channel list to a new snapshot and then switches to reading unloaded blocks from it
+     * A channel's lock is held while its block is taken so it can't load or change halfway through
+     * The journal is rotated first, so every record in the rotated file is in the snapshot and can be dropped after it
+     */
+    public void checkpoint(ChannelList channelList) throws IOException {
+        synchronized (checkpointLock) { // A second rotation before the first snapshot is written would drop records it lacks
+            writeCheckpoint(channelList);
+        }
+    }
+
+    private void writeCheckpoint(ChannelList channelList) throws IOException {
+        Journal j = getJournal();
+        if (j != null) j.rotate();
+        ArrayList<Channel> channels = channelList.copyChannels();
+        ArrayList<ChannelSnapshot.Entry> entries = new ArrayList<ChannelSnapshot.Entry>();
+        ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+        for (Channel c: channels) {
+            ChannelSnapshot.Entry e = new ChannelSnapshot.Entry();
+            e.id = c.getId();
+            e.group = c.getGroup();
+            e.name = c.getName();
+            e.owner = c.getOwner();
+            synchronized (c) {
+                e.lastSequence = c.getLastSequence();
+                ArrayList<Message> messages = c.getLoadedMessages();
+                ChannelSnapshot.Entry old;
+                if (messages != null) {
+                    e.count = messages.size();
+                    blocks.add(ChannelSnapshot.encodeMessages(messages));
+                } else if ((old = getUnloaded(c)) != null) {
+                    e.count = old.count;
+                    blocks.add(readUnloaded(c));
+                } else { // Archived
+                    e.count = 0;
+                    blocks.add(ChannelSnapshot.encodeMessages(new ArrayList<Message>()));
+                }
+            }
+            entries.add(e);
+        }
+        ChannelSnapshot.write(path, channelList.getNextId(), entries, blocks);
+
+        // Point channels that are still unloaded at the file we just wrote
+        ChannelSnapshot written = ChannelSnapshot.open(path);
+        synchronized (this) {
+            for (int i = 0; i < channels.size(); i++) {
+                if (unloaded.containsKey(channels.get(i))) {
+                    unloaded.put(channels.get(i), entries.get(i));
+                }
+            }
+            if (snapshot != null) snapshot.close();
+            snapshot = written;
+        }
+        if (j != null) j.dropRotated();
+    }
+
+    private synchronized ChannelSnapshot.Entry getUnloaded(Channel channel) {
+        return unloaded.get(channel);
+    }
+
+    // Blocks from an older snapshot version are decoded and written again in the current format
+    private synchronized byte[] readUnloaded(Channel channel) throws IOException {
+        ChannelSnapshot.Entry e = unloaded.get(channel);
+        byte[] block = snapshot.readBlock(e.offset, e.length);
+        if (snapshot.getVersion() < ChannelSnapshot.VERSION) {
+            block = ChannelSnapshot.encodeMessages(ChannelSnapshot.decodeMessages(e.group, e.name, block, snapshot.getVersion()));
+        }
+        return block;
+    }
+
+    public synchronized void close() {
+        if (snapshot != null) snapshot.close();
+        if (journal != null) journal.close();
+    }
+}
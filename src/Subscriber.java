@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Pushes new messages in subscribed channels to one client connection
+ * FanOut offers messages to it from sendMessage, and offering never blocks: messages go into a bounded queue
+ * and a pusher thread of its own encrypts them with the session key, deflating them first if the session does, and writes them to the socket
+ * When a slow client's queue is full, its queued messages for that channel are dropped and coalesced into
+ * one RESYNC notice, telling the client to read the channel again from the last message it saw
+ * Writes to the connection's output stream are synchronized on the stream, shared with MessageThread's responses
+ */
+
+public class Subscriber implements Runnable {
+
+    private ObjectOutputStream output;
+    private SecretKey sk;
+    private boolean deflate;
+    private int capacity;
+    private ArrayDeque<MessageAndText> queue;
+    private TreeSet<Long> resync; // Channels whose messages were dropped since the last RESYNC
+    private boolean closed = false;
+    private long dropped = 0;
+
+    public Subscriber(ObjectOutputStream _output, SecretKey _sk, boolean _deflate, int _capacity) {
+        output = _output;
+        sk = _sk;
+        deflate = _deflate;
+        capacity = _capacity;
+        queue = new ArrayDeque<MessageAndText>();
+        resync = new TreeSet<Long>();
+        Thread pusher = new Thread(this);
+        pusher.setDaemon(true);
+        pusher.start();
+    }
+
+    public synchronized void offer(long channelId, MessageAndText message) {
+        if (closed) return;
+        if (resync.contains(channelId)) { // Client will read this channel again anyway
+            dropped++;
+            return;
+        }
+        if (queue.size() >= capacity) {
+            Iterator<MessageAndText> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().getMessage().getChannelId() == channelId) {
+                    it.remove();
+                    dropped++;
+                }
+            }
+            resync.add(channelId);
+            dropped++;
+        } else {
+            queue.add(message);
+        }
+        notifyAll();
+    }
+
+    // Stops the pusher and drops every subscription of this connection
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+            notifyAll();
+        }
+        MessageServer.fanOut.unsubscribeAll(this);
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public void run() {
+        while (true) {
+            Envelope push;
+            synchronized (this) {
+                while (!closed && queue.isEmpty() && resync.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                if (!resync.isEmpty()) {
+                    push = new Envelope("RESYNC");
+                    push.addObject(new ArrayList<Long>(resync));
+                    resync.clear();
+                } else {
+                    push = new Envelope("MESSAGE");
+                    push.addObject(queue.poll());
+                }
+            }
+            try {
+                Envelope enc = MessageServer.suite.encryptEnvelopeAES(push, "PUSH", sk, deflate);
+                synchronized (output) {
+                    output.writeObject(enc);
+                    output.reset();
+                    output.flush();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * LRU cache of message ciphertexts bounded by total bytes
+ * Can be found as MessageServer.textCache
+ * Keyed by message file name, which is unique per message
+ * Any invalidation bumps a generation number, and a text read before that is not put in the cache,
+ * so a reader racing with setMessage can't cache the old text after it was replaced
+ */
+
+public class TextCache {
+
+    private long budget;
+    private long used = 0;
+    private long generation = 0;
+    private LinkedHashMap<String, ByteBuffer> texts;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public TextCache(long _budget) {
+        budget = _budget;
+        texts = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    }
+
+    // Returns a buffer of its own for the caller, or null
+    public synchronized ByteBuffer get(String path) {
+        ByteBuffer text = texts.get(path);
+        if (text == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return text.duplicate();
+    }
+
+    // Take this before reading a text that will be put in the cache
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Caches text unless something was invalidated since generation was taken
+    public synchronized void put(String path, ByteBuffer text, long _generation) {
+        if (_generation != generation || text.remaining() > budget) return;
+        ByteBuffer old = texts.put(path, text.duplicate());
+        if (old != null) used -= old.remaining();
+        used += text.remaining();
+        Iterator<ByteBuffer> it = texts.values().iterator();
+        while (used > budget && it.hasNext()) {
+            used -= it.next().remaining();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(String path) {
+        generation++;
+        ByteBuffer old = texts.remove(path);
+        if (old != null) used -= old.remaining();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return used;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %d bytes in %d texts", hits, misses, evictions, used, texts.size());
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Base64;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+/*
+ * Uploads of large messages in progress on the host server
+ * Can be found as MessageServer.uploads
+ * A client starts an upload with its total length, then sends it in chunks of chunkSize bytes in any order
+ * Each chunk is written straight to its place in a part file under the upload directory, so the server only ever holds one chunk
+ * Chunks can be sent again, and a client that lost its connection asks which ones are missing and carries on
+ * An upload can also replace the text of an existing message instead of adding a new one, for re-encryption
+ * Uploads idle for longer than timeout are dropped along with their part file
+ * Part files don't survive a restart, so the directory is emptied when the table is created
+ */
+
+public class UploadTable {
+
+    private File dir;
+    private int chunkSize;
+    private long maxBytes; // Longest upload accepted
+    private int capacity; // Most uploads in progress at once
+    private long timeout; // Milliseconds an upload may sit idle
+    private SecureRandom random = new SecureRandom();
+    private Hashtable<String, Upload> uploads;
+
+    public UploadTable(File _dir, int _chunkSize, long _maxBytes, int _capacity, long _timeout) {
+        dir = _dir;
+        chunkSize = _chunkSize;
+        maxBytes = _maxBytes;
+        capacity = _capacity;
+        timeout = _timeout;
+        uploads = new Hashtable<String, Upload>();
+        File[] left = dir.listFiles();
+        if (left != null) {
+            for (File f: left) {
+                f.delete();
+            }
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // Returns the ID of the new upload, or null if too many are in progress. replaces is the sequence number of the message it replaces, or 0
+    public synchronized String begin(String owner, long channelId, long length, int keyIndex, byte[] iv, int format, long replaces) throws IOException {
+        expire(System.currentTimeMillis());
+        if (uploads.size() >= capacity) return null;
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        String id = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+        File part = new File(dir, id + ".part");
+        FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ch.close();
+        uploads.put(id, new Upload(id, owner, channelId, length, keyIndex, iv, format, replaces, part, (int)((length + chunkSize - 1) / chunkSize)));
+        return id;
+    }
+
+    // Returns null if there is no such upload or it belongs to someone else
+    public synchronized Upload get(String id, String owner) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Upload u = uploads.get(id);
+        if (u == null || !u.owner.equals(owner)) return null;
+        u.lastUsed = now;
+        return u;
+    }
+
+    // Forgets an upload and returns whether it was still there. Its part file is left to the caller
+    public synchronized boolean remove(Upload u) {
+        return uploads.remove(u.id) != null;
+    }
+
+    public synchronized int size() {
+        return uploads.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Upload> it = uploads.values().iterator();
+        while (it.hasNext()) {
+            Upload u = it.next();
+            if (now - u.lastUsed < timeout) continue;
+            it.remove();
+            u.part.delete();
+        }
+    }
+
+    public class Upload {
+        private String id;
+        private String owner;
+        private long channelId;
+        private long length;
+        private int keyIndex;
+        private byte[] iv;
+        private int format;
+        private long replaces;
+        private File part;
+        private int chunks;
+        private BitSet received;
+        private long lastUsed;
+
+        private Upload(String _id, String _owner, long _channelId, long _length, int _keyIndex, byte[] _iv, int _format, long _replaces, File _part, int _chunks) {
+            id = _id;
+            owner = _owner;
+            channelId = _channelId;
+            length = _length;
+            keyIndex = _keyIndex;
+            iv = _iv;
+            format = _format;
+            replaces = _replaces;
+            part = _part;
+            chunks = _chunks;
+            received = new BitSet(chunks);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /*
+         * Writes chunk number index to its place in the part file
+         * Every chunk but the last has to be exactly chunkSize bytes, and the last one whatever is left
+         * Returns false if the chunk doesn't fit
+         */
+        public boolean write(int index, byte[] chunk) throws IOException {
+            if (index < 0 || index >= chunks) return false;
+            long offset = (long)index * chunkSize;
+            if (chunk.length != Math.min(chunkSize, length - offset)) return false;
+            FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(chunk);
+                while (buf.hasRemaining()) {
+                    ch.write(buf, offset + buf.position());
+                }
+            } finally {
+                ch.close();
+            }
+            synchronized (this) {
+                received.set(index);
+            }
+            return true;
+        }
+
+        public synchronized ArrayList<Integer> getMissing() {
+            ArrayList<Integer> missing = new ArrayList<Integer>();
+            for (int i = received.nextClearBit(0); i < chunks; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+
+        public synchronized boolean isComplete() {
+            return received.cardinality() == chunks;
+        }
+
+        public long getChannelId() {
+            return channelId;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getKeyIndex() {
+            return keyIndex;
+        }
+
+        public byte[] getIv() {
+            return iv;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        // Sequence number of the message whose text this upload replaces, 0 for a new message
+        public long getReplaces() {
+            return replaces;
+        }
+
+        public File getPart() {
+            return part;
+        }
+    }
+}
@@ -10,6 +10,7 @@ import javax.crypto.SecretKey;
 		 */
 		private static final long serialVersionUID = 7600343803563417992L;
 		private Hashtable<String, User> list = new Hashtable<String, User>();
+		private long journalSeq; // Last journal record included in this checkpoint
 		
 		public synchronized void addUser(String username, SecretKey sk, byte[] salt)
 		{
@@ -64,6 +65,14 @@ import javax.crypto.SecretKey;
 			list.get(user).removeOwnership(groupname);
 		}
 
+		public synchronized long getJournalSeq() {
+			return journalSeq;
+		}
+
+		public synchronized void setJournalSeq(long seq) {
+			journalSeq = seq;
+		}
+
 		public synchronized SecretKey getUserMasterKey(String user) {
 			return list.get(user).getMasterKey();
 		}